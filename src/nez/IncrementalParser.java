@@ -0,0 +1,70 @@
+package nez;
+
+import nez.ast.AST;
+import nez.ast.Node;
+import nez.runtime.MemoTable;
+import nez.util.StringUtils;
+
+/*
+ * IncrementalParser
+ * Reparses a text after small edits. The memo table is kept across parses
+ * and adjusted to each edit; the memo entries (and their AST subtrees) that
+ * have not examined the edited bytes are reused by the next parse.
+ * Every memo point is kept active, regardless of the memo monitor.
+ * The reused subtrees are shared with the new tree, and those after an edit
+ * are moved in place; the tree of the previous parse is no longer valid
+ * after the next parse (copy it first if it is still needed).
+ */
+
+public class IncrementalParser {
+	private final Production production;
+	private final EditableSourceContext context;
+	private MemoTable table;
+
+	IncrementalParser(Production p, String resource, String text) {
+		this.production = p;
+		this.context = new EditableSourceContext(resource, 1, text);
+		this.table = MemoTable.newIncrementalTable(this.context, this.context.length());
+	}
+
+	public final Production getProduction() {
+		return this.production;
+	}
+
+	public final SourceContext getSourceContext() {
+		return this.context;
+	}
+
+	/* replaces removed bytes at offset with inserted bytes */
+	public final void edit(long offset, int removed, byte[] inserted) {
+		if(offset < 0 || removed < 0 || offset + removed > this.context.length()) {
+			throw new IndexOutOfBoundsException("edit: " + offset + "+" + removed);
+		}
+		this.context.edit(offset, removed, inserted);
+		if(!this.table.edit(offset, removed, inserted.length)) {
+			this.table = MemoTable.newIncrementalTable(this.context, this.context.length());
+		}
+	}
+
+	public final void edit(long offset, int removed, String inserted) {
+		this.edit(offset, removed, StringUtils.toUtf8(inserted));
+	}
+
+	public final boolean match() {
+		this.context.rewind();
+		if(this.production.match(this.context, this.table)) {
+			return (!this.context.hasUnconsumed());
+		}
+		return false;
+	}
+
+	/* invalidates the tree returned by the previous parse */
+	public final <T extends Node> T parse(T base) {
+		this.context.rewind();
+		return this.production.parse(this.context, base, this.table);
+	}
+
+	public final AST parseAST() {
+		return this.parse(new AST());
+	}
+}
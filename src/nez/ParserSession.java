@@ -0,0 +1,55 @@
+package nez;
+
+import nez.ast.AST;
+import nez.ast.Node;
+
+/*
+ * ParserSession
+ * A reusable parsing context for high-rate parsing of small inputs.
+ * The stacks, data logs, symbol table and memo table are kept across
+ * inputs, and only reset for the next input. A session is not
+ * thread-safe; use one session per thread (see Production).
+ */
+
+public class ParserSession {
+	private final Production production;
+	private StringSourceContext context = null;
+
+	ParserSession(Production p) {
+		this.production = p;
+	}
+
+	public final Production getProduction() {
+		return this.production;
+	}
+
+	public final SourceContext reset(String text) {
+		return this.reset("(string)", 1, text);
+	}
+
+	public final SourceContext reset(String resource, long linenum, String text) {
+		if(this.context == null) {
+			this.context = new StringSourceContext(resource, linenum, text);
+		}
+		else {
+			this.context.reset(resource, linenum, text);
+		}
+		return this.context;
+	}
+
+	public final boolean match(String text) {
+		SourceContext sc = this.reset(text);
+		if(this.production.match(sc)) {
+			return (!sc.hasUnconsumed());
+		}
+		return false;
+	}
+
+	public final <T extends Node> T parse(String text, T base) {
+		return this.production.parse(this.reset(text), base);
+	}
+
+	public final AST parseAST(String text) {
+		return this.parse(text, new AST());
+	}
+}
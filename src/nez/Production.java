@@ -2,20 +2,37 @@ package nez;
 
 import nez.ast.AST;
 import nez.ast.Node;
+import nez.ast.NodeListener;
 import nez.expr.Expression;
 import nez.expr.NonTerminal;
 import nez.expr.Rule;
+import nez.main.Metrics;
 import nez.main.Recorder;
 import nez.main.Verbose;
+import nez.runtime.ByteCodeCompiler;
+import nez.runtime.CompiledCode;
 import nez.runtime.Instruction;
 import nez.runtime.MemoPoint;
+import nez.runtime.MemoPolicy;
+import nez.runtime.MemoProfile;
 import nez.runtime.MemoTable;
+import nez.runtime.RuleProfiler;
 import nez.runtime.RuntimeCompiler;
+import nez.runtime.SamplingProfiler;
+import nez.runtime.Speculation;
 import nez.util.ConsoleUtils;
 import nez.util.FlagUtils;
 import nez.util.UList;
 import nez.util.UMap;
 
+/*
+ * Production
+ * Once configured (enable/disable/config), a Production is thread-safe;
+ * match() and parse() can be called by many threads at once, as long as
+ * each thread uses its own SourceContext. All per-parse states are kept 
+ * in SourceContext.
+ */
+
 public class Production {
 	Rule start;
 	UMap<Rule>           ruleMap;
@@ -127,12 +144,14 @@ public class Production {
 	/* --------------------------------------------------------------------- */
 	/* memoization configuration */
 	
-	private Instruction compiledCode = null;
+	private volatile Instruction compiledCode = null;
+	private volatile CompiledCode byteCode = null;
 	private int option;
 	
-	private void setOption (int option) {
+	private synchronized void setOption (int option) {
 		if(this.option != option) {
 			this.compiledCode = null; // recompile
+			this.byteCode = null;
 		}
 		if(FlagUtils.is(option, PackratParsing) && this.defaultMemoTable == null) {
 			this.defaultMemoTable = MemoTable.newElasticTable(0, 0, 0);
@@ -148,6 +167,67 @@ public class Production {
 		setOption(FlagUtils.unsetFlag(this.option, option));
 	}
 
+	private Speculation speculation = null;
+
+	/* evaluates the choices of the designated rules speculatively (null: sequential) */
+	public final synchronized void setSpeculation(Speculation speculation) {
+		this.speculation = speculation;
+		this.compiledCode = null; // recompile
+		this.byteCode = null;
+	}
+
+	private MemoProfile memoProfile = null;
+
+	/* memoizes only the profitable nonterminals in the profile (null: all) */
+	public final synchronized void setMemoProfile(MemoProfile profile) {
+		this.memoProfile = profile;
+		this.compiledCode = null; // recompile
+		this.byteCode = null;
+	}
+
+	/* writes the statistics of memo points (collected with Verbose.PackratParsing) */
+	public final void saveMemoProfile(String path) {
+		if(this.memoPointList != null) {
+			MemoProfile profile = new MemoProfile();
+			profile.add(this.memoPointList);
+			profile.save(path);
+		}
+	}
+
+	private RuleProfiler ruleProfiler = null;
+
+	/* runs on the interpreter with per-rule statistics (null: off) */
+	public final void setRuleProfiler(RuleProfiler prof) {
+		this.ruleProfiler = prof;
+	}
+
+	private SamplingProfiler samplingProfiler = null;
+	private Instruction[] codeTable = null;
+	private Rule[] ruleTable = null;
+
+	/* runs on the interpreter, sampled by the profiler (null: off) */
+	public final synchronized void setSamplingProfiler(SamplingProfiler prof) {
+		this.samplingProfiler = prof;
+		this.compiledCode = null; // recompile for the rule table
+		this.byteCode = null;
+	}
+
+	private Metrics metrics = null;
+
+	/* feeds the metrics after each parse (null: off) */
+	public final synchronized void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+		this.compiledCode = null; // recompile for the grammar gauges
+		this.byteCode = null;
+	}
+
+	private MemoPolicy memoPolicy = null;
+
+	/* decides whether monitored memo points keep memoizing (null: default) */
+	public final void setMemoPolicy(MemoPolicy policy) {
+		this.memoPolicy = policy;
+	}
+
 	private MemoTable defaultMemoTable;
 	private int windowSize = 32;
 	private int memoPointSize;
@@ -159,28 +239,65 @@ public class Production {
 		this.defaultMemoTable = memoTable;
 	}
 	
+	private final static MemoTable NullTable = MemoTable.newNullTable(0, 0, 0);
+
 	private MemoTable getMemoTable(SourceContext sc) {
-		if(memoPointSize == 0) {
-			return MemoTable.newNullTable(sc.length(), this.windowSize, this.memoPointSize);
-		}
-		return this.defaultMemoTable.newMemoTable(sc.length(), this.windowSize, this.memoPointSize);
+		MemoTable table = (memoPointSize == 0) ? NullTable : this.defaultMemoTable;
+		table = table.newMemoTable(sc.getMemoTable(), sc.length(), this.windowSize, this.memoPointSize);
+		table.setOwner(this);
+		return table;
+	}
+
+	/* the memo table of the previous match on the same input can be continued */
+	private boolean isContinued(SourceContext sc) {
+		MemoTable prev = sc.getMemoTable();
+		MemoTable table = (memoPointSize == 0) ? NullTable : this.defaultMemoTable;
+		return prev != null && prev.isOwnedBy(this) && prev.getClass() == table.getClass();
 	}
 
 	public final Instruction compile() {
+		Instruction code = this.compiledCode;
+		if(code == null) {
+			code = this.compileCode();
+		}
+		return code;
+	}
+
+	private synchronized Instruction compileCode() {
 		if(compiledCode == null) {
 			RuntimeCompiler bc = new RuntimeCompiler(this.option);
-			compiledCode = bc.encode(this.ruleList);
+			bc.setSpeculation(this.speculation);
+			bc.setMemoProfile(this.memoProfile);
+			Instruction code = bc.encode(this.ruleList);
 			this.InstructionSize  = bc.getInstructionSize();
 			this.memoPointSize = bc.getMemoPointSize();
 			if(Verbose.PackratParsing) {
 				this.memoPointList = bc.getMemoPointList();
 			}
+			if(this.metrics != null) {
+				this.metrics.instructions.set(this.InstructionSize);
+				this.metrics.memoPoints.set(this.memoPointSize);
+			}
+			if(this.samplingProfiler != null) {
+				this.codeTable = bc.getCodeTable();
+				this.ruleTable = bc.getRuleTable(this.ruleList);
+			}
 			if(Verbose.VirtualMachine) {
 				bc.dump(this.ruleList);
 			}
+			if(FlagUtils.is(this.option, Production.ByteCode)) {
+				this.byteCode = ByteCodeCompiler.compile(bc, this.ruleList);
+			}
+			this.compiledCode = code;  // published after byteCode
 		}
 		return compiledCode;
 	}
+
+	/* false if the bytecode is disabled or has failed to compile (the interpreter runs) */
+	public final boolean isByteCodeCompiled() {
+		this.compile();
+		return this.byteCode != null;
+	}
 	
 	public RuntimeCompiler cc() {
 		RuntimeCompiler bc = new RuntimeCompiler(this.option);
@@ -189,22 +306,57 @@ public class Production {
 	}
 		
 	public final boolean match(SourceContext s) {
+		return this.match(s, null);
+	}
+
+	/* a given memo table (e.g., IncrementalParser's) keeps every memo point active */
+	final boolean match(SourceContext s, MemoTable table) {
+		return this.match(s, table, false);
+	}
+
+	/* continues on the same input (e.g., the next record of RecordParser); the memo entries remain valid */
+	final boolean matchNext(SourceContext s) {
+		return this.match(s, null, true);
+	}
+
+	private boolean match(SourceContext s, MemoTable table, boolean continued) {
 		boolean matched;
 		if(FlagUtils.is(this.option, Production.ClassicMode)) {
 			matched = this.start.match(s);
 		}
 		else {
 			Instruction pc = this.compile();
-			s.initJumpStack(64, getMemoTable(s));
+			if(table != null) {
+				s.initJumpStack(64, table);
+				s.initMemoMonitor(0);
+			}
+			else if(continued && this.isContinued(s)) {
+				s.continueJumpStack(64);  // keeps the memo monitor, too
+			}
+			else {
+				s.initJumpStack(64, getMemoTable(s));
+				s.initMemoMonitor(FlagUtils.is(this.option, Production.Tracing) ? this.memoPointSize : 0, this.memoPolicy);
+			}
+			s.start(this.metrics);
 			if(Verbose.Debug) {
 				matched = Instruction.debug(pc, s);
 			}
+			else if(this.ruleProfiler != null) {
+				matched = Instruction.profile(pc, s, this.ruleProfiler);
+			}
+			else if(this.samplingProfiler != null) {
+				matched = Instruction.sample(pc, s, this.samplingProfiler, this.codeTable, this.ruleTable);
+			}
+			else if(this.byteCode != null) {
+				matched = this.byteCode.run(pc, s);
+			}
 			else {
 				matched = Instruction.run(pc, s);
 			}
 			if(matched) {
 				s.newTopLevelNode();
 			}
+			s.done(this.metrics, matched);
 		}
 		return matched;
 	}
@@ -277,11 +429,23 @@ public class Production {
 		return false;
 	}
 
-	@SuppressWarnings("unchecked")
 	public <T extends Node> T parse(SourceContext sc, T base) {
+		return this.parse(sc, base, (MemoTable)null);
+	}
+
+	final <T extends Node> T parse(SourceContext sc, T base, MemoTable table) {
+		return this.parse(sc, base, table, false);
+	}
+
+	final <T extends Node> T parseNext(SourceContext sc, T base) {
+		return this.parse(sc, base, null, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Node> T parse(SourceContext sc, T base, MemoTable table, boolean continued) {
 		long startPosition = sc.getPosition();
 		sc.setBaseNode(base);
-		if(!this.match(sc)) {
+		if(!this.match(sc, table, continued)) {
 			
 			return null;
 		}
@@ -296,6 +460,25 @@ public class Production {
 		return (T)node;
 	}
 
+	/* the children of the top-level node are handed to the listener as soon as they are final */
+	public <T extends Node> T parse(SourceContext sc, T base, NodeListener listener) {
+		sc.setNodeListener(listener);
+		try {
+			return this.parse(sc, base, (MemoTable)null);
+		}
+		finally {
+			sc.setNodeListener(null);
+		}
+	}
+
+	public final ParserSession newSession() {
+		return new ParserSession(this);
+	}
+
+	public final IncrementalParser newIncrementalParser(String resource, String text) {
+		return new IncrementalParser(this, resource, text);
+	}
+
 	public final AST parseAST(String str) {
 		SourceContext sc = SourceContext.newStringSourceContext(str);
 		return this.parse(sc, new AST());
@@ -338,6 +521,7 @@ public class Production {
 	public final static int Binary = 1 << 10;
 	public final static int Utf8   = 1 << 11;	
 	public final static int Profiling = 1 << 12;
+	public final static int ByteCode  = 1 << 13;
 
 	public final static int DefaultOption = ASTConstruction | PackratParsing | Optimization 
 											| Specialization | CommonPrefix | Prediction | Tracing;
@@ -387,6 +571,10 @@ public class Production {
 			sb.append(delim);
 			sb.append("prof");
 		}
+		if(FlagUtils.is(option, Production.ByteCode)) {
+			sb.append(delim);
+			sb.append("jit");
+		}
 		String s = sb.toString();
 		if(s.length() > 0) {
 			return s.substring(delim.length());
@@ -0,0 +1,187 @@
+package nez;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import nez.ast.CompactNode;
+import nez.ast.CompactTree;
+import nez.ast.Node;
+import nez.ast.Tag;
+import nez.util.UList;
+
+/*
+ * RecordParser
+ * Parses a file that is a sequence of independent records in parallel.
+ * The file is split into chunks just after a boundary pattern (e.g., '\n'),
+ * and the chunks are parsed as repeated records on a ForkJoinPool. A chunk
+ * is accepted only if the previous chunk has ended exactly at its start;
+ * otherwise (e.g., a boundary inside a quoted field) it is reparsed from
+ * where the previous chunk ended. The records are linked in order under
+ * one top-level node. Each chunk builds its records in its own CompactTree,
+ * if any, and they are copied into the tree of the top-level node.
+ */
+
+public class RecordParser {
+	private final Production record;
+	private final byte[] boundary;
+	private final ForkJoinPool pool;
+	private long minChunkSize = 1 << 20;
+	private SourceContext stoppedContext = null;
+
+	public RecordParser(Production record, byte[] boundary, ForkJoinPool pool) {
+		this.record = record;
+		this.boundary = boundary;
+		this.pool = pool;
+	}
+
+	public final void setMinChunkSize(long size) {
+		this.minChunkSize = size;
+	}
+
+	/* the context where parsing has stopped; used for error messages */
+	public final SourceContext getStoppedContext() {
+		return this.stoppedContext;
+	}
+
+	public final boolean match(SourceContext sc) throws IOException {
+		this.run(sc, null, null);
+		return !this.stoppedContext.hasUnconsumed();
+	}
+
+	@SuppressWarnings("unchecked")
+	public final <T extends Node> T parse(SourceContext sc, T base, Tag tag) throws IOException {
+		UList<Node> nodes = new UList<Node>(new Node[256]);
+		this.run(sc, base, nodes);
+		Node node = base.newNode(tag, sc, 0, this.stoppedContext.getPosition(), nodes.size());
+		for(int i = 0; i < nodes.size(); i++) {
+			node.link(i, nodes.ArrayValues[i]);
+		}
+		return (T)node.commit();
+	}
+
+	private void run(SourceContext sc, Node base, UList<Node> nodes) throws IOException {
+		String fileName = sc.getResourceName();
+		List<Chunk> chunks = this.split(fileName, sc, base);
+		List<Future<Chunk>> results = new ArrayList<Future<Chunk>>(chunks.size());
+		for(Chunk c : chunks) {
+			results.add(this.pool.submit(c));
+		}
+		long pos = 0;
+		for(Future<Chunk> f : results) {
+			Chunk c = get(f);
+			if(c.start != pos) {
+				if(pos >= c.end) {
+					continue;  // swallowed by the previous chunk
+				}
+				c = new Chunk(fileName, null, base, pos, c.end).call();
+			}
+			if(nodes != null) {
+				for(Node n : c.nodes) {
+					nodes.add(n);
+				}
+			}
+			this.stoppedContext = c.sc;
+			pos = c.sc.getPosition();
+			if(c.failed) {
+				break;
+			}
+		}
+	}
+
+	private List<Chunk> split(String fileName, SourceContext sc, Node base) {
+		long length = sc.length();
+		int n = Math.max(1, (int)Math.min(this.pool.getParallelism() * 4L, length / this.minChunkSize));
+		if(sc.isStreaming() || !new File(fileName).isFile()) {
+			n = 1;  // workers cannot reopen the input
+		}
+		List<Chunk> chunks = new ArrayList<Chunk>(n);
+		long start = 0;
+		for(int i = 1; i < n; i++) {
+			long pos = Math.max(start, length * i / n);
+			while(pos < length && !sc.match(pos, this.boundary)) {
+				pos++;
+			}
+			pos = Math.min(pos + this.boundary.length, length);
+			if(pos > start && pos < length) {
+				chunks.add(new Chunk(fileName, chunks.isEmpty() ? sc : null, base, start, pos));
+				start = pos;
+			}
+		}
+		chunks.add(new Chunk(fileName, chunks.isEmpty() ? sc : null, base, start, length));
+		return chunks;
+	}
+
+	private static Chunk get(Future<Chunk> f) {
+		try {
+			return f.get();
+		}
+		catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	class Chunk implements Callable<Chunk> {
+		final String fileName;
+		final Node base;
+		final long start;
+		final long end;
+		SourceContext sc;
+		List<Node> nodes = new ArrayList<Node>();
+		boolean failed = false;
+
+		Chunk(String fileName, SourceContext sc, Node base, long start, long end) {
+			this.fileName = fileName;
+			this.sc = sc;
+			/* a CompactTree cannot be shared; the records are copied when linked */
+			this.base = (base instanceof CompactNode) ? new CompactTree().newBaseNode() : base;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public Chunk call() throws IOException {
+			if(this.sc == null) {
+				this.sc = SourceContext.loadSource(this.fileName);
+			}
+			this.sc.rollback(this.start);
+			while(this.sc.getPosition() < this.end) {
+				long pos = this.sc.getPosition();
+				if(this.base == null) {
+					if(!record.matchNext(this.sc)) {
+						this.failed = true;
+						break;
+					}
+				}
+				else {
+					Node node = record.parseNext(this.sc, this.base);
+					if(node == null) {
+						this.failed = true;
+						break;
+					}
+					this.nodes.add(node);
+				}
+				if(this.sc.getPosition() == pos) {
+					this.failed = true;  // no progress
+					break;
+				}
+			}
+			return this;
+		}
+	}
+}
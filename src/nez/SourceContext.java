@@ -8,10 +8,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import nez.runtime.ClassicContext;
+import nez.runtime.Context;
 import nez.util.StringUtils;
 
 public abstract class SourceContext extends ClassicContext {
@@ -36,6 +41,12 @@ public abstract class SourceContext extends ClassicContext {
 	@Override
 	public abstract long    linenum(long pos);
 
+	protected void reset(String fileName, long linenum) {
+		this.reset();
+		this.fileName = fileName;
+		this.startLineNum = linenum;
+	}
+
 	/* handling input stream */
 	
 	@Override
@@ -85,10 +96,11 @@ public abstract class SourceContext extends ClassicContext {
 		if(!(startIndex < this.length())) {
 			startIndex = this.length() - 1;
 		}
-		if(startIndex < 0) {
-			startIndex = 0;
+		long bufferedIndex = this.getBufferedStartPosition();
+		if(startIndex < bufferedIndex) {
+			startIndex = bufferedIndex;
 		}
-		while(startIndex > 0) {
+		while(startIndex > bufferedIndex) {
 			int ch = byteAt(startIndex);
 			if(ch == '\n') {
 				startIndex = startIndex + 1;
@@ -129,14 +141,15 @@ public abstract class SourceContext extends ClassicContext {
 
 	private final String getTextAround(long pos, String delim) {
 		int ch = 0;
-		if(pos < 0) {
-			pos = 0;
+		long bufferedIndex = this.getBufferedStartPosition();
+		if(pos < bufferedIndex) {
+			pos = bufferedIndex;
 		}
-		while(this.byteAt(pos) == this.EOF() && pos > 0) {
+		while(this.byteAt(pos) == this.EOF() && pos > bufferedIndex) {
 			pos -= 1;
 		}
 		long startIndex = pos;
-		while(startIndex > 0) {
+		while(startIndex > bufferedIndex) {
 			ch = byteAt(startIndex);
 			if(ch == '\n' && pos - startIndex > 0) {
 				startIndex = startIndex + 1;
@@ -202,12 +215,29 @@ public abstract class SourceContext extends ClassicContext {
 		return new StringSourceContext(resource, linenum, str);
 	}
 
+	public final static SourceContext newStreamSourceContext(String resource, InputStream in) {
+		return new StreamSourceContext(resource, in);
+	}
+
+	public final static SourceContext newStreamSourceContext(String resource, ReadableByteChannel ch) {
+		return new StreamSourceContext(resource, Channels.newInputStream(ch));
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
 	public final static SourceContext loadSource(String fileName) throws IOException {
 		InputStream Stream = SourceContext.class.getResourceAsStream("/" + fileName);
 		if (Stream == null) {
 			File f = new File(fileName);
 			if(f.length() > 16 * 1024) {
-				return new FileSourceContext(fileName);
+				try {
+					return new MappedSourceContext(fileName);
+				}
+				catch(IOException e) {
+					return new FileSourceContext(fileName);
+				}
 			}
 			Stream = new FileInputStream(fileName);
 		}
@@ -248,6 +278,17 @@ class StringSourceContext extends SourceContext {
 		this.textLength = utf8.length-1;
 	}
 
+	final void reset(String resource, long linenum, String sourceText) {
+		this.reset(resource, linenum);
+		byte[] b = StringUtils.toUtf8(sourceText);
+		if(!(b.length < this.utf8.length)) {
+			this.utf8 = new byte[b.length * 2 + 1];
+		}
+		System.arraycopy(b, 0, this.utf8, 0, b.length);
+		this.utf8[b.length] = 0;
+		this.textLength = b.length;
+	}
+
 	private final byte[] toZeroTerminalByteSequence(String s) {
 		byte[] b = StringUtils.toUtf8(s);
 		byte[] b2 = new byte[b.length+1];
@@ -303,8 +344,8 @@ class StringSourceContext extends SourceContext {
 	public final long linenum(long pos) {
 		long count = this.startLineNum;
 		int end = (int)pos;
-		if(end >= this.utf8.length) {
-			end = this.utf8.length;
+		if(end > this.textLength) {
+			end = (int)this.textLength;
 		}
 		for(int i = 0; i < end; i++) {
 			if(this.utf8[i] == '\n') {
@@ -313,6 +354,509 @@ class StringSourceContext extends SourceContext {
 		}
 		return count;
 	}
+
+	@Override
+	public final Context fork() {
+		return new ForkedSourceContext(this);  // reads are thread-safe
+	}
+}
+
+/*
+ * EditableSourceContext
+ * A text kept in a gap buffer; an edit moves the gap to the edited offset,
+ * so nearby edits do not copy the whole text (see IncrementalParser).
+ */
+
+class EditableSourceContext extends SourceContext {
+	private byte[] buf;        // text + gap + the terminal 0
+	private int gapStart;
+	private int gapEnd;
+	private long textLength;
+
+	EditableSourceContext(String resource, long linenum, String sourceText) {
+		super(resource, linenum);
+		byte[] b = StringUtils.toUtf8(sourceText);
+		this.buf = new byte[b.length + 256 + 1];
+		System.arraycopy(b, 0, this.buf, 0, b.length);
+		this.gapStart = b.length;
+		this.gapEnd = this.buf.length - 1;
+		this.textLength = b.length;
+	}
+
+	final void edit(long offset, int removed, byte[] inserted) {
+		int gap = this.gapEnd - this.gapStart;
+		int pos = (int)offset;
+		if(pos < this.gapStart) {
+			System.arraycopy(this.buf, pos, this.buf, this.gapEnd - (this.gapStart - pos), this.gapStart - pos);
+		}
+		else if(pos > this.gapStart) {
+			System.arraycopy(this.buf, this.gapEnd, this.buf, this.gapStart, pos - this.gapStart);
+		}
+		this.gapStart = pos;
+		this.gapEnd = pos + gap + removed;
+		if(this.gapEnd - this.gapStart < inserted.length) {
+			byte[] newbuf = new byte[this.buf.length + inserted.length + this.buf.length / 2];
+			int tail = this.buf.length - this.gapEnd;
+			System.arraycopy(this.buf, 0, newbuf, 0, this.gapStart);
+			System.arraycopy(this.buf, this.gapEnd, newbuf, newbuf.length - tail, tail);
+			this.buf = newbuf;
+			this.gapEnd = newbuf.length - tail;
+		}
+		System.arraycopy(inserted, 0, this.buf, this.gapStart, inserted.length);
+		this.gapStart += inserted.length;
+		this.textLength += inserted.length - removed;
+	}
+
+	final void rewind() {
+		this.reset(this.getResourceName(), this.startLineNum);
+	}
+
+	private int index(long pos) {
+		return (int)(pos < this.gapStart ? pos : pos + (this.gapEnd - this.gapStart));
+	}
+
+	@Override
+	public final long length() {
+		return this.textLength;
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		return this.buf[index(pos)] & 0xff;
+	}
+
+	@Override
+	public final int EOF() {
+		return 0;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if(pos + text.length > this.textLength) {
+			return false;
+		}
+		for(int i = 0; i < text.length; i++) {
+			if(text[i] != this.buf[index(pos + i)]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final String substring(long startIndex, long endIndex) {
+		try {
+			return new String(this.subbyte(startIndex, endIndex), StringUtils.DefaultEncoding);
+		} catch (UnsupportedEncodingException e) {
+		}
+		return null;
+	}
+
+	@Override
+	public final byte[] subbyte(long startIndex, long endIndex) {
+		byte[] b = new byte[(int)(endIndex - startIndex)];
+		int s = (int)startIndex;
+		int n = Math.max(0, Math.min(this.gapStart - s, b.length));
+		System.arraycopy(this.buf, s, b, 0, n);
+		System.arraycopy(this.buf, index(s + n), b, n, b.length - n);
+		return b;
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		long count = this.startLineNum;
+		long end = Math.min(pos, this.textLength);
+		for(long i = 0; i < end; i++) {
+			if(this.buf[index(i)] == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+}
+
+class MappedSourceContext extends SourceContext {
+	/* the file is mapped in chunks of 1GiB, each overlapping the next by 64KiB */
+	private final static int ChunkBits = 30;
+	private final static long ChunkMask = (1L << ChunkBits) - 1;
+	private final static int Overlap = 64 * 1024;
+	private final static int LineBlockBits = 12;
+
+	private final long fileLength;
+	private final MappedByteBuffer[] chunks;
+	private long[] lines;      // line number at the head of each block
+	private volatile int linesIndexed = 1;  // published after lines[]
+
+	MappedSourceContext(String fileName) throws IOException {
+		super(fileName, 1);
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			this.fileLength = channel.size();
+			this.chunks = new MappedByteBuffer[(int)(this.fileLength >>> ChunkBits) + 1];
+			for(int i = 0; i < this.chunks.length; i++) {
+				long start = (long)i << ChunkBits;
+				long size = Math.min((1L << ChunkBits) + Overlap, this.fileLength - start);
+				this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			}
+		}
+		finally {
+			file.close();  // the mapping remains valid
+		}
+		this.lines = new long[(int)(this.fileLength >>> LineBlockBits) + 2];
+		this.lines[0] = 1;
+	}
+
+	@Override
+	public final long length() {
+		return this.fileLength;
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		if(pos < this.fileLength) {
+			return this.chunks[(int)(pos >>> ChunkBits)].get((int)(pos & ChunkMask)) & 0xff;
+		}
+		return 0;
+	}
+
+	@Override
+	public final int EOF() {
+		return 0;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if(pos + text.length > this.fileLength) {
+			return false;
+		}
+		MappedByteBuffer chunk = this.chunks[(int)(pos >>> ChunkBits)];
+		int offset = (int)(pos & ChunkMask);
+		if(offset + text.length <= chunk.limit()) {
+			for(int i = 0; i < text.length; i++) {
+				if(text[i] != chunk.get(offset + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for(int i = 0; i < text.length; i++) {
+			if((text[i] & 0xff) != this.byteAt(pos + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final byte[] subbyte(long startIndex, long endIndex) {
+		if(endIndex > this.fileLength) {
+			endIndex = this.fileLength;
+		}
+		if(!(endIndex > startIndex)) {
+			return new byte[0];
+		}
+		byte[] b = new byte[(int)(endIndex - startIndex)];
+		MappedByteBuffer chunk = this.chunks[(int)(startIndex >>> ChunkBits)];
+		int offset = (int)(startIndex & ChunkMask);
+		if(offset + b.length <= chunk.limit()) {
+			for(int i = 0; i < b.length; i++) {
+				b[i] = chunk.get(offset + i);
+			}
+		}
+		else {
+			for(int i = 0; i < b.length; i++) {
+				b[i] = (byte)this.byteAt(startIndex + i);
+			}
+		}
+		return b;
+	}
+
+	@Override
+	public final String substring(long startIndex, long endIndex) {
+		try {
+			return new String(this.subbyte(startIndex, endIndex), StringUtils.DefaultEncoding);
+		} catch (UnsupportedEncodingException e) {
+		}
+		return null;
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		if(pos > this.fileLength) {
+			pos = this.fileLength;
+		}
+		int block = (int)(pos >>> LineBlockBits);
+		if(this.linesIndexed <= block) {
+			this.indexLines(block);
+		}
+		return this.startLineNum - 1 + this.lines[block] + countLines((long)block << LineBlockBits, pos);
+	}
+
+	/* indexes blocks lazily; forked contexts may call it at the same time */
+	private synchronized void indexLines(int block) {
+		int indexed = this.linesIndexed;
+		while(indexed <= block) {
+			long start = (long)(indexed - 1) << LineBlockBits;
+			this.lines[indexed] = this.lines[indexed - 1] + countLines(start, start + (1L << LineBlockBits));
+			indexed++;
+		}
+		this.linesIndexed = indexed;
+	}
+
+	private long countLines(long start, long end) {
+		long count = 0;
+		if(end > this.fileLength) {
+			end = this.fileLength;
+		}
+		for(long i = start; i < end; i++) {
+			if(this.byteAt(i) == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public final Context fork() {
+		return new ForkedSourceContext(this);  // reads are thread-safe
+	}
+}
+
+/*
+ * ForkedSourceContext
+ * Reads the text of another context on a different thread, with its own
+ * position and stacks (see nez.runtime.Speculation). Once cancelled, any
+ * character and string matching fail, so that the parser soon stops.
+ */
+class ForkedSourceContext extends SourceContext {
+	private final SourceContext origin;
+	private volatile boolean cancelled = false;
+
+	ForkedSourceContext(SourceContext origin) {
+		super(origin.getResourceName(), origin.startLineNum);
+		this.origin = origin;
+	}
+
+	@Override
+	public final void cancel() {
+		this.cancelled = true;
+	}
+
+	@Override
+	public final long length() {
+		return this.origin.length();
+	}
+
+	@Override
+	public final boolean hasUnconsumed() {
+		return !this.cancelled && super.hasUnconsumed();
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		return this.origin.byteAt(pos);  // unchecked to keep the fast path
+	}
+
+	@Override
+	public final int EOF() {
+		return this.origin.EOF();
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		return !this.cancelled && this.origin.match(pos, text);
+	}
+
+	@Override
+	public final String substring(long startIndex, long endIndex) {
+		return this.origin.substring(startIndex, endIndex);
+	}
+
+	@Override
+	public final byte[] subbyte(long startIndex, long endIndex) {
+		return this.origin.subbyte(startIndex, endIndex);
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		return this.origin.linenum(pos);
+	}
+}
+
+class StreamSourceContext extends SourceContext {
+	/* 
+	 * bytes are kept in a ring buffer from the oldest live position 
+	 * (Context.getLowestLivePosition) to the last read position. 
+	 * the buffer grows only if the live region does not fit.
+	 * reading a discarded position fails with IndexOutOfBoundsException,
+	 * rather than a mis-parse; the text before a line start that is no
+	 * longer live (e.g., for <indent>) is seen from the oldest buffered byte.
+	 */
+	private final static int InitialBufferSize = 64 * 1024;
+	private final InputStream in;
+	private byte[] buffer;
+	private int mask;
+	private long low = 0;
+	private long high = 0;
+	private boolean eof = false;
+	private long lowLinenum;
+
+	StreamSourceContext(String resource, InputStream in) {
+		super(resource, 1);
+		this.in = in;
+		this.buffer = new byte[InitialBufferSize];
+		this.mask = this.buffer.length - 1;
+		this.lowLinenum = this.startLineNum;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return true;
+	}
+
+	private boolean fill(long pos) {
+		while(pos >= this.high && !this.eof) {
+			if(this.high - this.low == this.buffer.length) {
+				this.discard(this.getLowestLivePosition());
+				if(this.high - this.low == this.buffer.length) {
+					this.grow();
+				}
+			}
+			int start = (int)(this.high & this.mask);
+			int len = Math.min(this.buffer.length - start, this.buffer.length - (int)(this.high - this.low));
+			try {
+				int n = this.in.read(this.buffer, start, len);
+				if(n == -1) {
+					this.eof = true;
+					this.in.close();
+				}
+				else {
+					this.high += n;
+				}
+			}
+			catch(IOException e) {
+				/* a read error is not the end of the input */
+				throw new RuntimeException(this.getResourceName() + ": " + e.getMessage(), e);
+			}
+		}
+		return pos < this.high;
+	}
+
+	private void discard(long pos) {
+		if(pos > this.high) {
+			pos = this.high;
+		}
+		for(long i = this.low; i < pos; i++) {
+			if(this.buffer[(int)i & this.mask] == '\n') {
+				this.lowLinenum++;
+			}
+		}
+		if(pos > this.low) {
+			this.low = pos;
+		}
+	}
+
+	private void grow() {
+		byte[] b = new byte[this.buffer.length * 2];
+		int newmask = b.length - 1;
+		for(long i = this.low; i < this.high; i++) {
+			b[(int)i & newmask] = this.buffer[(int)i & this.mask];
+		}
+		this.buffer = b;
+		this.mask = newmask;
+	}
+
+	@Override
+	public final long length() {
+		return this.eof ? this.high : Long.MAX_VALUE;
+	}
+
+	@Override
+	public final boolean hasUnconsumed() {
+		return this.fill(this.getPosition());
+	}
+
+	@Override
+	public final long getBufferedStartPosition() {
+		return this.low;
+	}
+
+	private void checkDiscarded(long pos) {
+		if(pos < this.low) {
+			throw new IndexOutOfBoundsException(this.getResourceName() + ": position " + pos + " has been discarded from the stream buffer (oldest: " + this.low + ")");
+		}
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		this.checkDiscarded(pos);
+		if(pos < this.high || this.fill(pos)) {
+			return this.buffer[(int)pos & this.mask] & 0xff;
+		}
+		return 0;  // EOF
+	}
+
+	@Override
+	public final int EOF() {
+		return 0;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		this.checkDiscarded(pos);
+		if(text.length > 0 && !this.fill(pos + text.length - 1)) {
+			return false;
+		}
+		for(int i = 0; i < text.length; i++) {
+			if(text[i] != this.buffer[(int)(pos + i) & this.mask]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final byte[] subbyte(long startIndex, long endIndex) {
+		this.checkDiscarded(startIndex);
+		if(endIndex > startIndex) {
+			this.fill(endIndex - 1);
+		}
+		if(endIndex > this.high) {
+			endIndex = this.high;
+		}
+		if(!(endIndex > startIndex)) {
+			return new byte[0];
+		}
+		byte[] b = new byte[(int)(endIndex - startIndex)];
+		for(int i = 0; i < b.length; i++) {
+			b[i] = this.buffer[(int)(startIndex + i) & this.mask];
+		}
+		return b;
+	}
+
+	@Override
+	public final String substring(long startIndex, long endIndex) {
+		try {
+			return new String(this.subbyte(startIndex, endIndex), StringUtils.DefaultEncoding);
+		} catch (UnsupportedEncodingException e) {
+		}
+		return null;
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		long count = this.lowLinenum;
+		if(pos > this.high) {
+			pos = this.high;
+		}
+		for(long i = this.low; i < pos; i++) {
+			if(this.buffer[(int)i & this.mask] == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
 }
 
 class FileSourceContext extends SourceContext {
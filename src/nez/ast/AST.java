@@ -1,6 +1,7 @@
 package nez.ast;
 
 import java.util.AbstractList;
+import java.util.Arrays;
 
 import nez.util.StringUtils;
 
@@ -12,6 +13,7 @@ public class AST extends AbstractList<AST> implements Node, SourcePosition {
 	private Object    value  = null;
 	AST               parent = null;
 	private AST       subTree[] = null;
+	private ASTArena  arena = null;
 
 	public AST() {
 		this.tag        = Tag.tag("Text");
@@ -30,8 +32,30 @@ public class AST extends AbstractList<AST> implements Node, SourcePosition {
 		}
 	}
 
+	/* a node allocated by ASTArena */
+	AST(ASTArena arena) {
+		this();
+		this.arena = arena;
+	}
+
+	/* reinitializes a node in ASTArena; returns the old child array */
+	final AST[] init(Tag tag, Source source, long pos, long epos, AST[] subTree) {
+		AST[] old = this.subTree;
+		this.tag        = tag;
+		this.source     = source;
+		this.pos        = pos;
+		this.length     = (int)(epos - pos);
+		this.value      = null;
+		this.parent     = null;
+		this.subTree    = subTree;
+		return old;
+	}
+
 	@Override
 	public Node newNode(Tag tag, Source source, long spos, long epos, int size) {
+		if(this.arena != null) {
+			return this.arena.newNode(tag == null ? this.tag : tag, source, spos, epos, size);
+		}
 		return new AST(tag == null ? this.tag : tag, source, spos, epos, size);
 	}
 
@@ -112,6 +136,18 @@ public class AST extends AbstractList<AST> implements Node, SourcePosition {
 		return this.pos;
 	}
 
+	/* moves this subtree in place after an edit of the source (see IncrementalParser); every tree sharing it sees the move */
+	public final void relocate(long delta) {
+		this.pos += delta;
+		if(this.subTree != null) {
+			for(AST t : this.subTree) {
+				if(t != null) {
+					t.relocate(delta);
+				}
+			}
+		}
+	}
+
 	@Override
 	public final String formatSourceMessage(String type, String msg) {
 		return this.source.formatPositionLine(type, this.getSourcePosition(), msg);
@@ -135,6 +171,30 @@ public class AST extends AbstractList<AST> implements Node, SourcePosition {
 		return this.length == 0;
 	}
 	
+	/* the value given by setValue() or the cached text */
+	final Object getValue() {
+		return this.value;
+	}
+
+	/* the token without making a String (the text is not cached) */
+	public final CharSequence getTextSequence() {
+		if(this.value != null) {
+			return this.value.toString();
+		}
+		if(this.source != null) {
+			return new SourceText(this.source, this.pos, this.pos + this.length);
+		}
+		return "";
+	}
+
+	/* compares the token with the UTF-8 bytes of a text */
+	public final boolean textEquals(byte[] text) {
+		if(this.value != null || this.source == null) {
+			return Arrays.equals(StringUtils.toUtf8(this.getText()), text);
+		}
+		return this.length == text.length && this.source.match(this.pos, text);
+	}
+
 	public final String getText() {
 		if(this.value != null) {
 			return this.value.toString();
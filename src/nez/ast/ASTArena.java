@@ -0,0 +1,104 @@
+package nez.ast;
+
+import java.util.Arrays;
+
+/*
+ * ASTArena
+ * Allocates AST nodes for one parse at a time from slabs of preallocated
+ * nodes. Child arrays of up to MaxPooledSize children are pooled by size.
+ * reset() releases the whole tree of the last parse at once: its nodes
+ * and child arrays are reused by the next parse, so that a service parsing
+ * many files produces little garbage. The tree must not be used after
+ * reset(), including nodes kept in a memo table.
+ *
+ *   ASTArena arena = new ASTArena();
+ *   AST t = p.parse(sc, arena.newBaseNode());
+ *   ...
+ *   arena.reset();
+ */
+
+public class ASTArena {
+	final static int SlabSize = 4096;
+	final static int MaxPooledSize = 16;
+
+	private AST[][] slabs = new AST[4][];
+	private int used = 0;          // nodes given out since reset()
+	private int allocated = 0;     // nodes in the slabs
+
+	private AST[][][] pools = new AST[MaxPooledSize + 1][][];
+	private int[] pooled = new int[MaxPooledSize + 1];
+
+	/* the base node to be given to Production.parse() */
+	public final AST newBaseNode() {
+		return new AST(this);
+	}
+
+	final AST newNode(Tag tag, Source source, long spos, long epos, int size) {
+		if(this.used == this.allocated) {
+			this.newSlab();
+		}
+		AST node = this.slabs[this.used / SlabSize][this.used % SlabSize];
+		this.used++;
+		node.init(tag, source, spos, epos, this.newChildren(size));
+		return node;
+	}
+
+	private void newSlab() {
+		int n = this.allocated / SlabSize;
+		if(n == this.slabs.length) {
+			this.slabs = Arrays.copyOf(this.slabs, n * 2);
+		}
+		AST[] slab = new AST[SlabSize];
+		for(int i = 0; i < SlabSize; i++) {
+			slab[i] = new AST(this);
+		}
+		this.slabs[n] = slab;
+		this.allocated += SlabSize;
+	}
+
+	private AST[] newChildren(int size) {
+		if(size == 0) {
+			return null;
+		}
+		if(size <= MaxPooledSize && this.pooled[size] > 0) {
+			this.pooled[size]--;
+			return this.pools[size][this.pooled[size]];
+		}
+		return new AST[size];
+	}
+
+	private void release(AST[] children) {
+		int size = children.length;
+		if(size <= MaxPooledSize) {
+			Arrays.fill(children, null);
+			AST[][] pool = this.pools[size];
+			if(pool == null) {
+				pool = new AST[64][];
+				this.pools[size] = pool;
+			}
+			else if(this.pooled[size] == pool.length) {
+				pool = Arrays.copyOf(pool, pool.length * 2);
+				this.pools[size] = pool;
+			}
+			pool[this.pooled[size]] = children;
+			this.pooled[size]++;
+		}
+	}
+
+	/* releases all nodes; the last tree must not be used any more */
+	public final void reset() {
+		for(int i = 0; i < this.used; i++) {
+			AST node = this.slabs[i / SlabSize][i % SlabSize];
+			AST[] children = node.init(null, null, 0, 0, null);
+			if(children != null) {
+				this.release(children);
+			}
+		}
+		this.used = 0;
+	}
+
+	/* the number of nodes given out since reset() */
+	public final int size() {
+		return this.used;
+	}
+}
@@ -7,14 +7,30 @@ import nez.util.FileBuilder;
 import nez.util.StringUtils;
 
 public class ASTWriter implements Transformer {
+	private final boolean compact;
+
+	public ASTWriter() {
+		this(false);
+	}
+
+	/* compact: trees are built in CompactTree */
+	public ASTWriter(boolean compact) {
+		this.compact = compact;
+	}
+
 	@Override
 	public Node newNode() {
-		return new AST();
+		return this.compact ? new CompactTree().newBaseNode() : new AST();
 	}
 	@Override
 	public void transform(String path, Node node) {
 		FileBuilder fb = new FileBuilder(path);
-		this.writeAST(fb, (AST)node);
+		if(node instanceof CompactNode) {
+			this.writeAST(fb, (CompactNode)node);
+		}
+		else {
+			this.writeAST(fb, (AST)node);
+		}
 		fb.writeNewLine();
 		fb.flush();
 	}
@@ -39,6 +55,28 @@ public class ASTWriter implements Transformer {
 		}
 	}
 	
+	private void writeAST(FileBuilder fb, CompactNode node) {
+		fb.writeIndent("(#" + node.getTag().toString()); 
+		if(!node.hasChild()) {
+			fb.write(" "); 
+			fb.write(StringUtils.quoteString('\'', node.getText(), '\''));
+			fb.write(")");
+		}
+		else {
+			fb.incIndent();
+			int index = 0;
+			for(CompactNode c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+				for(; index < c.getIndex(); index++) {
+					fb.writeIndent("null");
+				}
+				this.writeAST(fb, c);
+				index++;
+			}
+			fb.decIndent();
+			fb.writeIndent(")"); 
+		}
+	}
+
 	public void writeTag(FileBuilder fb, AST po) {
 		TreeMap<String,Integer> m = new TreeMap<String,Integer>();
 		this.tagCount(po, m);
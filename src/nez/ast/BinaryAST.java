@@ -0,0 +1,125 @@
+package nez.ast;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import nez.util.StringUtils;
+
+/*
+ * BinaryAST
+ * Reads a tree written by BinaryASTWriter. The file is memory-mapped and
+ * only the header and the tag table are decoded when it is opened; a
+ * BinaryNode decodes its header on demand, and the offsets of its children
+ * when they are visited first. Texts are read from the embedded slices, or
+ * from the given source if the file has none. (Files up to 2GB)
+ */
+
+public class BinaryAST {
+	private final MappedByteBuffer data;
+	private final Source source;
+	private final boolean embedded;
+	private final Tag[] tags;
+	private final int root;
+
+	public BinaryAST(String path) throws IOException {
+		this(path, null);
+	}
+
+	/* source: the parsed text, used if no source slices are embedded */
+	public BinaryAST(String path, Source source) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			this.data = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+		}
+		finally {
+			f.close();
+		}
+		this.source = source;
+		for(int i = 0; i < BinaryASTWriter.Magic.length; i++) {
+			if(i >= this.data.limit() || this.data.get(i) != BinaryASTWriter.Magic[i]) {
+				throw new IOException("not a binary AST: " + path);
+			}
+		}
+		if(this.data.get(4) != BinaryASTWriter.Version) {
+			throw new IOException("unsupported version: " + this.data.get(4));
+		}
+		this.embedded = (this.data.get(5) & BinaryASTWriter.EmbeddedSource) != 0;
+		int offset = 6;
+		this.tags = new Tag[(int)this.readVarint(offset)];
+		offset += this.sizeAt(offset);
+		for(int i = 0; i < this.tags.length; i++) {
+			int len = (int)this.readVarint(offset);
+			offset += this.sizeAt(offset);
+			this.tags[i] = Tag.tag(this.decode(offset, len));
+			offset += len;
+		}
+		this.root = offset;
+	}
+
+	public final BinaryNode getRoot() {
+		return this.newNode(this.root, 0);
+	}
+
+	final BinaryNode newNode(int offset, long ppos) {
+		int tag = (int)this.readVarint(offset);
+		if(tag == 0) {
+			return null;
+		}
+		return new BinaryNode(this, offset, ppos);
+	}
+
+	final Source getSource() {
+		return this.source;
+	}
+
+	final boolean hasEmbeddedSource() {
+		return this.embedded;
+	}
+
+	final Tag getTag(int index) {
+		return this.tags[index - 1];
+	}
+
+	/* the byte size of the varint at offset */
+	final int sizeAt(int offset) {
+		int size = 1;
+		while((this.data.get(offset++) & 0x80) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	final long readVarint(int offset) {
+		long n = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = this.data.get(offset++);
+			n |= (long)(b & 0x7f) << shift;
+			shift += 7;
+		}
+		while((b & 0x80) != 0);
+		return n;
+	}
+
+	final static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	final String decode(int offset, int length) {
+		byte[] b = new byte[length];
+		ByteBuffer d = this.data.duplicate();
+		d.position(offset);
+		d.get(b);
+		try {
+			return new String(b, StringUtils.DefaultEncoding);
+		}
+		catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
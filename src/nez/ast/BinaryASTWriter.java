@@ -0,0 +1,271 @@
+package nez.ast;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import nez.util.ConsoleUtils;
+import nez.util.StringUtils;
+
+/*
+ * BinaryASTWriter
+ * Writes a tree in the binary format read by BinaryAST:
+ *
+ *   "NEZB" version(1) flags(1: source slices embedded)
+ *   varint tagCount, { varint length, UTF-8 name }*
+ *   node (preorder)
+ *
+ *   node = varint tag+1 (0: null)  zigzag varint pos - parent pos  varint length
+ *          varint childCount
+ *          childCount > 0 : varint bytes of the children, node*
+ *          childCount = 0 : [varint length, UTF-8 text] if the source is embedded
+ *
+ * The byte size of each subtree is computed in the first pass, so that the
+ * reader can skip a subtree without decoding it.
+ */
+
+public class BinaryASTWriter implements Transformer {
+	final static byte[] Magic = { 'N', 'E', 'Z', 'B' };
+	final static int Version = 1;
+	final static int EmbeddedSource = 1;
+
+	private final boolean embedSource;
+	private final boolean compact;
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private FileChannel channel = null;
+
+	private int[] tagIndex;           // tag id -> index in the tag table
+	private ArrayList<Tag> tags;
+	private int[] sizes;              // preorder -> the byte size of the children
+	private int count;
+
+	public BinaryASTWriter(boolean embedSource) {
+		this(embedSource, false);
+	}
+
+	/* compact: trees are built in CompactTree */
+	public BinaryASTWriter(boolean embedSource, boolean compact) {
+		this.embedSource = embedSource;
+		this.compact = compact;
+	}
+
+	@Override
+	public Node newNode() {
+		return this.compact ? new CompactTree().newBaseNode() : new AST();
+	}
+
+	@Override
+	public void transform(String path, Node node) {
+		this.tagIndex = new int[64];
+		this.tags = new ArrayList<Tag>();
+		this.sizes = new int[1024];
+		this.count = 0;
+		this.measure(node, 0);
+		try {
+			if(path == null) {
+				System.out.flush();
+				this.channel = new FileOutputStream(FileDescriptor.out).getChannel();
+			}
+			else {
+				this.channel = new FileOutputStream(path).getChannel();
+			}
+		}
+		catch(FileNotFoundException e) {
+			ConsoleUtils.exit(1, "cannot open: " + path);
+		}
+		this.buffer.clear();
+		this.buffer.put(Magic);
+		this.buffer.put((byte)Version);
+		this.buffer.put((byte)(this.embedSource ? EmbeddedSource : 0));
+		this.putVarint(this.tags.size());
+		for(Tag t : this.tags) {
+			this.putBytes(bytes(t.getName()));
+		}
+		this.count = 0;
+		this.write(node, 0);
+		this.drain();
+		try {
+			if(path != null) {
+				this.channel.close();
+			}
+		}
+		catch(IOException e) {
+			ConsoleUtils.exit(1, "IO error: " + e.getMessage());
+		}
+		this.channel = null;
+		this.sizes = null;
+	}
+
+	/* the first pass: returns the byte size of the node */
+	private int measure(Node node, long ppos) {
+		if(node == null) {
+			return 1;
+		}
+		int id = this.count++;
+		if(id == this.sizes.length) {
+			this.sizes = Arrays.copyOf(this.sizes, id * 2);
+		}
+		Tag tag = node.getTag();
+		if(tag.id >= this.tagIndex.length) {
+			this.tagIndex = Arrays.copyOf(this.tagIndex, tag.id * 2);
+		}
+		if(this.tagIndex[tag.id] == 0) {
+			this.tags.add(tag);
+			this.tagIndex[tag.id] = this.tags.size();  // index + 1
+		}
+		long pos = getSourcePosition(node);
+		Node[] children = children(node);
+		int size = sizeOfVarint(this.tagIndex[tag.id]) + sizeOfVarint(zigzag(pos - ppos))
+				+ sizeOfVarint(getLength(node)) + sizeOfVarint(children.length);
+		if(children.length > 0) {
+			int body = 0;
+			for(Node c : children) {
+				body += this.measure(c, pos);
+			}
+			this.sizes[id] = body;
+			return size + sizeOfVarint(body) + body;
+		}
+		if(this.embedSource) {
+			int len = text(node).length;
+			return size + sizeOfVarint(len) + len;
+		}
+		return size;
+	}
+
+	private void write(Node node, long ppos) {
+		if(node == null) {
+			this.putVarint(0);
+			return;
+		}
+		int id = this.count++;
+		long pos = getSourcePosition(node);
+		Node[] children = children(node);
+		this.putVarint(this.tagIndex[node.getTag().id]);
+		this.putVarint(zigzag(pos - ppos));
+		this.putVarint(getLength(node));
+		this.putVarint(children.length);
+		if(children.length > 0) {
+			this.putVarint(this.sizes[id]);
+			for(Node c : children) {
+				this.write(c, pos);
+			}
+		}
+		else if(this.embedSource) {
+			this.putBytes(text(node));
+		}
+	}
+
+	/* AST and CompactNode */
+
+	private static Node[] children(Node node) {
+		if(node instanceof CompactNode) {
+			CompactNode n = (CompactNode)node;
+			Node[] a = new Node[n.size()];
+			for(CompactNode c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+				a[c.getIndex()] = c;
+			}
+			return a;
+		}
+		AST n = (AST)node;
+		Node[] a = new Node[n.size()];
+		for(int i = 0; i < a.length; i++) {
+			a[i] = n.get(i);
+		}
+		return a;
+	}
+
+	private static long getSourcePosition(Node node) {
+		return (node instanceof CompactNode) ? ((CompactNode)node).getSourcePosition() : ((AST)node).getSourcePosition();
+	}
+
+	private static int getLength(Node node) {
+		return (node instanceof CompactNode) ? ((CompactNode)node).getLength() : ((AST)node).getLength();
+	}
+
+	private static byte[] text(Node node) {
+		Object value;
+		Source source;
+		if(node instanceof CompactNode) {
+			value = ((CompactNode)node).getValue();
+			source = ((CompactNode)node).getSource();
+		}
+		else {
+			value = ((AST)node).getValue();
+			source = ((AST)node).getSource();
+		}
+		if(value != null) {
+			return bytes(value.toString());
+		}
+		if(source == null) {
+			return new byte[0];
+		}
+		long pos = getSourcePosition(node);
+		return source.subbyte(pos, pos + getLength(node));
+	}
+
+	static byte[] bytes(String s) {
+		try {
+			return s.getBytes(StringUtils.DefaultEncoding);
+		}
+		catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* varint */
+
+	static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	static int sizeOfVarint(long n) {
+		int size = 1;
+		while((n & ~0x7fL) != 0) {
+			n >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private void putVarint(long n) {
+		if(this.buffer.remaining() < 10) {
+			this.drain();
+		}
+		while((n & ~0x7fL) != 0) {
+			this.buffer.put((byte)((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		this.buffer.put((byte)n);
+	}
+
+	private void putBytes(byte[] b) {
+		this.putVarint(b.length);
+		for(int i = 0; i < b.length; ) {
+			if(!this.buffer.hasRemaining()) {
+				this.drain();
+			}
+			int n = Math.min(this.buffer.remaining(), b.length - i);
+			this.buffer.put(b, i, n);
+			i += n;
+		}
+	}
+
+	private void drain() {
+		this.buffer.flip();
+		try {
+			while(this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+		}
+		catch(IOException e) {
+			ConsoleUtils.exit(1, "IO error: " + e.getMessage());
+		}
+		this.buffer.clear();
+	}
+}
@@ -0,0 +1,198 @@
+package nez.ast;
+
+import nez.util.StringUtils;
+
+/*
+ * BinaryNode
+ * A read-only node in a memory-mapped BinaryAST. The header is decoded
+ * when the node is created; the children are located when they are
+ * visited first, by skipping their subtrees. toAST() copies the subtree.
+ */
+
+public class BinaryNode implements Node, SourcePosition {
+	private final BinaryAST file;
+	private final Tag tag;
+	private final long pos;
+	private final int length;
+	private final int size;
+	private final int body;       // the offset of the children or the text
+	private int[] children = null;
+
+	BinaryNode(BinaryAST file, int offset, long ppos) {
+		this.file = file;
+		this.tag = file.getTag((int)file.readVarint(offset));
+		offset += file.sizeAt(offset);
+		this.pos = ppos + BinaryAST.unzigzag(file.readVarint(offset));
+		offset += file.sizeAt(offset);
+		this.length = (int)file.readVarint(offset);
+		offset += file.sizeAt(offset);
+		this.size = (int)file.readVarint(offset);
+		offset += file.sizeAt(offset);
+		if(this.size > 0) {
+			offset += file.sizeAt(offset);  // the byte size of the children
+		}
+		this.body = offset;
+	}
+
+	@Override
+	public Node newNode(Tag tag, Source source, long spos, long epos, int size) {
+		throw new UnsupportedOperationException("read-only node");
+	}
+
+	@Override
+	public void setValue(Object value) {
+		throw new UnsupportedOperationException("read-only node");
+	}
+
+	@Override
+	public void link(int index, Node child) {
+		throw new UnsupportedOperationException("read-only node");
+	}
+
+	@Override
+	public Node commit() {
+		return this;
+	}
+
+	@Override
+	public Tag getTag() {
+		return this.tag;
+	}
+
+	@Override
+	public void setTag(Tag tag) {
+		throw new UnsupportedOperationException("read-only node");
+	}
+
+	@Override
+	public void setEndingPosition(long pos) {
+		throw new UnsupportedOperationException("read-only node");
+	}
+
+	@Override
+	public void expandAstToSize(int newSize) {
+		throw new UnsupportedOperationException("read-only node");
+	}
+
+	public final long getSourcePosition() {
+		return this.pos;
+	}
+
+	public final int getLength() {
+		return this.length;
+	}
+
+	public final boolean is(Tag t) {
+		return this.tag == t;
+	}
+
+	public final int size() {
+		return this.size;
+	}
+
+	public final BinaryNode get(int index) {
+		if(this.children == null) {
+			this.children = this.locateChildren();
+		}
+		int offset = this.children[index];
+		return (offset == -1) ? null : new BinaryNode(this.file, offset, this.pos);
+	}
+
+	private int[] locateChildren() {
+		int[] a = new int[this.size];
+		int offset = this.body;
+		for(int i = 0; i < this.size; i++) {
+			if(this.file.readVarint(offset) == 0) {
+				a[i] = -1;
+				offset += 1;
+				continue;
+			}
+			a[i] = offset;
+			for(int n = 0; n < 3; n++) {  // tag, pos, length
+				offset += this.file.sizeAt(offset);
+			}
+			long size = this.file.readVarint(offset);
+			offset += this.file.sizeAt(offset);
+			if(size > 0 || this.file.hasEmbeddedSource()) {
+				int skip = (int)this.file.readVarint(offset);
+				offset += this.file.sizeAt(offset) + skip;
+			}
+		}
+		return a;
+	}
+
+	public final String getText() {
+		if(this.size == 0 && this.file.hasEmbeddedSource()) {
+			int len = (int)this.file.readVarint(this.body);
+			return this.file.decode(this.body + this.file.sizeAt(this.body), len);
+		}
+		Source source = this.file.getSource();
+		return (source == null) ? "" : source.substring(this.pos, this.pos + this.length);
+	}
+
+	@Override
+	public final String formatSourceMessage(String type, String msg) {
+		Source source = this.file.getSource();
+		if(source == null) {
+			return "(" + this.pos + ") [" + type + "] " + msg;
+		}
+		return source.formatPositionLine(type, this.pos, msg);
+	}
+
+	/* copies the subtree into AST */
+	public final AST toAST() {
+		AST base = new AST();
+		return this.copy(base);
+	}
+
+	private AST copy(AST base) {
+		AST node = (AST)base.newNode(this.tag, this.file.getSource(), this.pos, this.pos + this.length, this.size);
+		if(this.size == 0 && this.file.hasEmbeddedSource()) {
+			node.setValue(this.getText());
+		}
+		for(int i = 0; i < this.size; i++) {
+			BinaryNode c = this.get(i);
+			if(c != null) {
+				node.link(i, c.copy(base));
+			}
+		}
+		return node;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		this.stringfy("", sb);
+		return sb.toString();
+	}
+
+	/* the same format as AST */
+	final void stringfy(String indent, StringBuilder sb) {
+		sb.append("\n");
+		sb.append(indent);
+		sb.append("(#");
+		sb.append(this.tag.name);
+		if(this.size == 0) {
+			sb.append(" ");
+			StringUtils.formatQuoteString(sb, '\'', this.getText(), '\'');
+			sb.append(")");
+		}
+		else {
+			String nindent = "   " + indent;
+			for(int i = 0; i < this.size; i++) {
+				BinaryNode c = this.get(i);
+				if(c == null) {
+					sb.append("\n");
+					sb.append(nindent);
+					sb.append("null");
+				}
+				else {
+					c.stringfy(nindent, sb);
+				}
+			}
+			sb.append("\n");
+			sb.append(indent);
+			sb.append(")");
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package nez.ast;
+
+import nez.util.StringUtils;
+
+/*
+ * CompactNode
+ * A cursor to a node in CompactTree. Children are visited in order by
+ * getFirstChild() and getNextSibling(); get(index) walks the siblings.
+ * A node of another tree is copied when it is linked.
+ */
+
+public class CompactNode implements Node, SourcePosition {
+	private final CompactTree tree;
+	private final int id;       // -1: the base node
+
+	CompactNode(CompactTree tree, int id) {
+		this.tree = tree;
+		this.id = id;
+	}
+
+	@Override
+	public Node newNode(Tag tag, Source source, long spos, long epos, int size) {
+		if(tag == null) {
+			tag = this.getTag();
+		}
+		return new CompactNode(this.tree, this.tree.newNode(tag, source, spos, epos));
+	}
+
+	@Override
+	public void setValue(Object value) {
+		this.tree.setValue(this.id, value);
+	}
+
+	@Override
+	public void link(int index, Node child) {
+		CompactNode c = (CompactNode)child;
+		this.tree.link(this.id, index, (c.tree == this.tree) ? c.id : this.tree.copy(c.tree, c.id));
+	}
+
+	@Override
+	public Node commit() {
+		return this;
+	}
+
+	@Override
+	public Tag getTag() {
+		return (this.id == -1) ? Tag.tag("Text") : this.tree.getTag(this.id);
+	}
+
+	@Override
+	public void setTag(Tag tag) {
+		this.tree.setTag(this.id, tag);
+	}
+
+	@Override
+	public void setEndingPosition(long pos) {
+		this.tree.setEndingPosition(this.id, pos);
+	}
+
+	@Override
+	public void expandAstToSize(int newSize) {
+		// children are linked as a list
+	}
+
+	public final CompactTree getTree() {
+		return this.tree;
+	}
+
+	public final Source getSource() {
+		return this.tree.getSource();
+	}
+
+	public final long getSourcePosition() {
+		return this.tree.getSourcePosition(this.id);
+	}
+
+	public final int getLength() {
+		return this.tree.getLength(this.id);
+	}
+
+	public final boolean is(Tag t) {
+		return this.getTag() == t;
+	}
+
+	final Object getValue() {
+		return this.tree.getValue(this.id);
+	}
+
+	public final String getText() {
+		Object value = this.tree.getValue(this.id);
+		if(value != null) {
+			return value.toString();
+		}
+		long pos = this.getSourcePosition();
+		return this.getSource().substring(pos, pos + this.getLength());
+	}
+
+	@Override
+	public final String formatSourceMessage(String type, String msg) {
+		return this.getSource().formatPositionLine(type, this.getSourcePosition(), msg);
+	}
+
+	public final boolean hasChild() {
+		return this.tree.getFirstChild(this.id) != -1;
+	}
+
+	public final CompactNode getFirstChild() {
+		return this.cursor(this.tree.getFirstChild(this.id));
+	}
+
+	public final CompactNode getNextSibling() {
+		return this.cursor(this.tree.getNextSibling(this.id));
+	}
+
+	/* the index in the parent */
+	public final int getIndex() {
+		return this.tree.getIndex(this.id);
+	}
+
+	private CompactNode cursor(int id) {
+		return (id == -1) ? null : new CompactNode(this.tree, id);
+	}
+
+	public final int size() {
+		int size = 0;
+		for(int c = this.tree.getFirstChild(this.id); c != -1; c = this.tree.getNextSibling(c)) {
+			size = this.tree.getIndex(c) + 1;
+		}
+		return size;
+	}
+
+	public final CompactNode get(int index) {
+		for(int c = this.tree.getFirstChild(this.id); c != -1; c = this.tree.getNextSibling(c)) {
+			if(this.tree.getIndex(c) == index) {
+				return new CompactNode(this.tree, c);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		this.stringfy("", sb);
+		return sb.toString();
+	}
+
+	/* the same format as AST */
+	final void stringfy(String indent, StringBuilder sb) {
+		sb.append("\n");
+		sb.append(indent);
+		sb.append("(#");
+		sb.append(this.getTag().name);
+		if(!this.hasChild()) {
+			sb.append(" ");
+			StringUtils.formatQuoteString(sb, '\'', this.getText(), '\'');
+			sb.append(")");
+		}
+		else {
+			String nindent = "   " + indent;
+			int index = 0;
+			for(CompactNode c = this.getFirstChild(); c != null; c = c.getNextSibling()) {
+				for(; index < c.getIndex(); index++) {
+					sb.append("\n");
+					sb.append(nindent);
+					sb.append("null");
+				}
+				c.stringfy(nindent, sb);
+				index++;
+			}
+			sb.append("\n");
+			sb.append(indent);
+			sb.append(")");
+		}
+	}
+}
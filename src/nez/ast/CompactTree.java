@@ -0,0 +1,195 @@
+package nez.ast;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * CompactTree
+ * Keeps a whole tree in parallel primitive arrays instead of one AST object
+ * per node. Nodes are numbered in the order of creation; the children of a
+ * node are linked as a list (firstChild/nextSibling) in the order of their
+ * index. A CompactNode is a lightweight cursor to a node, created on demand.
+ * A node takes 24 bytes (an AST object takes about 60 bytes); positions are
+ * widened to long only for inputs larger than 2GB, and values (rarely used)
+ * are kept in a map. Nodes that are dropped by backtracking remain unused.
+ */
+
+public class CompactTree {
+	private Source source = null;
+	private int    size = 0;
+	private int[]  tags;
+	private int[]  starts;
+	private long[] wideStarts = null;  // used instead of starts after 2GB
+	private int[]  lengths;
+	private int[]  firstChild;
+	private int[]  nextSibling;
+	private int[]  indexes;      // the index in the parent
+	private HashMap<Integer, Object> values = null;
+
+	/* the last linked child, to append children in O(1) if it is the tail */
+	private int lastParent = -1;
+	private int lastChild = -1;
+
+	public CompactTree() {
+		this(1024);
+	}
+
+	public CompactTree(int capacity) {
+		this.tags        = new int[capacity];
+		this.starts      = new int[capacity];
+		this.lengths     = new int[capacity];
+		this.firstChild  = new int[capacity];
+		this.nextSibling = new int[capacity];
+		this.indexes     = new int[capacity];
+	}
+
+	/* the base node to be given to Production.parse() */
+	public final CompactNode newBaseNode() {
+		return new CompactNode(this, -1);
+	}
+
+	public final int getNodeSize() {
+		return this.size;
+	}
+
+	public final Source getSource() {
+		return this.source;
+	}
+
+	final int newNode(Tag tag, Source source, long spos, long epos) {
+		if(this.size == this.tags.length) {
+			int capacity = this.size + (this.size >> 1) + 1;
+			this.tags        = Arrays.copyOf(this.tags, capacity);
+			this.lengths     = Arrays.copyOf(this.lengths, capacity);
+			this.firstChild  = Arrays.copyOf(this.firstChild, capacity);
+			this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+			this.indexes     = Arrays.copyOf(this.indexes, capacity);
+			if(this.wideStarts == null) {
+				this.starts = Arrays.copyOf(this.starts, capacity);
+			}
+			else {
+				this.wideStarts = Arrays.copyOf(this.wideStarts, capacity);
+			}
+		}
+		assert(this.source == null || this.source == source);
+		this.source = source;
+		int id = this.size;
+		this.tags[id] = tag.id;
+		this.setSourcePosition(id, spos);
+		this.lengths[id] = (int)(epos - spos);
+		this.firstChild[id] = -1;
+		this.nextSibling[id] = -1;
+		this.indexes[id] = 0;
+		this.size++;
+		return id;
+	}
+
+	private void setSourcePosition(int id, long pos) {
+		if(this.wideStarts == null) {
+			if(pos <= Integer.MAX_VALUE) {
+				this.starts[id] = (int)pos;
+				return;
+			}
+			this.wideStarts = new long[this.starts.length];
+			for(int i = 0; i < this.size; i++) {
+				this.wideStarts[i] = this.starts[i];
+			}
+			this.starts = null;
+		}
+		this.wideStarts[id] = pos;
+	}
+
+	final void link(int parent, int index, int child) {
+		this.indexes[child] = index;
+		if(parent == this.lastParent && this.nextSibling[this.lastChild] == -1 && this.indexes[this.lastChild] < index) {
+			this.nextSibling[child] = -1;
+			this.nextSibling[this.lastChild] = child;
+		}
+		else {
+			int prev = -1;
+			int cur = this.firstChild[parent];
+			while(cur != -1 && this.indexes[cur] < index) {
+				prev = cur;
+				cur = this.nextSibling[cur];
+			}
+			if(cur != -1 && this.indexes[cur] == index) {
+				cur = this.nextSibling[cur];  // replaced
+			}
+			this.nextSibling[child] = cur;
+			if(prev == -1) {
+				this.firstChild[parent] = child;
+			}
+			else {
+				this.nextSibling[prev] = child;
+			}
+		}
+		this.lastParent = parent;
+		this.lastChild = child;
+	}
+
+	/* copies a subtree of another tree, e.g., built on another thread */
+	final int copy(CompactTree from, int id) {
+		long pos = from.getSourcePosition(id);
+		int node = this.newNode(from.getTag(id), (this.source == null) ? from.source : this.source, pos, pos + from.getLength(id));
+		Object value = from.getValue(id);
+		if(value != null) {
+			this.setValue(node, value);
+		}
+		int prev = -1;
+		for(int c = from.getFirstChild(id); c != -1; c = from.getNextSibling(c)) {
+			int child = this.copy(from, c);
+			this.indexes[child] = from.getIndex(c);
+			if(prev == -1) {
+				this.firstChild[node] = child;
+			}
+			else {
+				this.nextSibling[prev] = child;
+			}
+			prev = child;
+		}
+		return node;
+	}
+
+	final Tag getTag(int id) {
+		return Tag.tag(this.tags[id]);
+	}
+
+	final void setTag(int id, Tag tag) {
+		this.tags[id] = tag.id;
+	}
+
+	final long getSourcePosition(int id) {
+		return (this.wideStarts == null) ? this.starts[id] : this.wideStarts[id];
+	}
+
+	final int getLength(int id) {
+		return this.lengths[id];
+	}
+
+	final void setEndingPosition(int id, long pos) {
+		this.lengths[id] = (int)(pos - this.getSourcePosition(id));
+	}
+
+	final int getFirstChild(int id) {
+		return this.firstChild[id];
+	}
+
+	final int getNextSibling(int id) {
+		return this.nextSibling[id];
+	}
+
+	final int getIndex(int id) {
+		return this.indexes[id];
+	}
+
+	final Object getValue(int id) {
+		return (this.values == null) ? null : this.values.get(id);
+	}
+
+	final void setValue(int id, Object value) {
+		if(this.values == null) {
+			this.values = new HashMap<Integer, Object>();
+		}
+		this.values.put(id, value);
+	}
+}
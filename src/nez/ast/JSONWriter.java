@@ -0,0 +1,278 @@
+package nez.ast;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import nez.util.ConsoleUtils;
+import nez.util.StringUtils;
+
+/*
+ * JSONWriter
+ * Writes trees as JSON (indented) or NDJSON (one tree per line) into a
+ * buffered channel. A node is written as
+ *   {"tag":"Name","pos":12,"text":"..."}  or  {"tag":"Name","pos":12,"children":[...]}
+ * Texts are escaped straight from the source bytes, without Strings.
+ * The channel is kept open while the same path is given, so that streamed
+ * subtrees (--ast:stream) are appended to one output.
+ */
+
+public class JSONWriter implements Transformer {
+	private final boolean ndjson;
+	private final boolean compact;
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private FileChannel channel = null;
+	private String path = null;
+	private byte[][] tagNames = new byte[64][];
+
+	public JSONWriter(boolean ndjson) {
+		this(ndjson, false);
+	}
+
+	/* compact: trees are built in CompactTree */
+	public JSONWriter(boolean ndjson, boolean compact) {
+		this.ndjson = ndjson;
+		this.compact = compact;
+	}
+
+	@Override
+	public Node newNode() {
+		return this.compact ? new CompactTree().newBaseNode() : new AST();
+	}
+
+	@Override
+	public void transform(String path, Node node) {
+		this.open(path);
+		if(this.path == null) {
+			System.out.flush();  // keeps the order of messages
+		}
+		if(node instanceof CompactNode) {
+			this.writeNode((CompactNode)node, 0);
+		}
+		else {
+			this.writeNode((AST)node, 0);
+		}
+		this.put((byte)'\n');
+		this.flush();
+	}
+
+	private void open(String path) {
+		if(this.channel != null && (path == null ? this.path == null : path.equals(this.path))) {
+			return;
+		}
+		this.close();
+		this.path = path;
+		if(path != null) {
+			try {
+				this.channel = new FileOutputStream(path).getChannel();
+				return;
+			}
+			catch(FileNotFoundException e) {
+				ConsoleUtils.notice(e.getMessage());
+				this.path = null;
+			}
+		}
+		this.channel = new FileOutputStream(FileDescriptor.out).getChannel();
+	}
+
+	public final void close() {
+		if(this.channel != null && this.path != null) {
+			try {
+				this.channel.close();
+			}
+			catch(IOException e) {
+				ConsoleUtils.exit(1, "IO error: " + e.getMessage());
+			}
+		}
+		this.channel = null;
+	}
+
+	private void writeNode(AST node, int level) {
+		if(node == null) {
+			this.put(Null);
+			return;
+		}
+		this.writeHead(node.getTag(), node.getSourcePosition());
+		if(node.size() == 0) {
+			this.put(TextKey);
+			this.writeText(node.getValue(), node.getSource(), node.getSourcePosition(), node.getLength());
+			this.put((byte)'}');
+			return;
+		}
+		this.put(ChildrenKey);
+		for(int i = 0; i < node.size(); i++) {
+			if(i > 0) {
+				this.put((byte)',');
+			}
+			this.writeIndent(level + 1);
+			this.writeNode(node.get(i), level + 1);
+		}
+		this.writeIndent(level);
+		this.put(End);
+	}
+
+	private void writeNode(CompactNode node, int level) {
+		this.writeHead(node.getTag(), node.getSourcePosition());
+		if(!node.hasChild()) {
+			this.put(TextKey);
+			this.writeText(node.getValue(), node.getSource(), node.getSourcePosition(), node.getLength());
+			this.put((byte)'}');
+			return;
+		}
+		this.put(ChildrenKey);
+		int index = 0;
+		for(CompactNode c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+			for(; index <= c.getIndex(); index++) {
+				if(index > 0) {
+					this.put((byte)',');
+				}
+				this.writeIndent(level + 1);
+				if(index < c.getIndex()) {
+					this.put(Null);
+				}
+			}
+			this.writeNode(c, level + 1);
+		}
+		this.writeIndent(level);
+		this.put(End);
+	}
+
+	private final static byte[] Null        = bytes("null");
+	private final static byte[] TagKey      = bytes("{\"tag\":\"");
+	private final static byte[] PosKey      = bytes("\",\"pos\":");
+	private final static byte[] TextKey     = bytes(",\"text\":\"");
+	private final static byte[] ChildrenKey = bytes(",\"children\":[");
+	private final static byte[] End         = bytes("]}");
+	private final static byte[] Hex         = bytes("0123456789abcdef");
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes(StringUtils.DefaultEncoding);
+		}
+		catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeHead(Tag tag, long pos) {
+		if(tag.id >= this.tagNames.length) {
+			this.tagNames = Arrays.copyOf(this.tagNames, tag.id * 2);
+		}
+		byte[] name = this.tagNames[tag.id];
+		if(name == null) {
+			name = bytes(tag.getName());
+			this.tagNames[tag.id] = name;
+		}
+		this.put(TagKey);
+		this.escape(name, 0, name.length);
+		this.put(PosKey);
+		this.putLong(pos);
+	}
+
+	private void writeText(Object value, Source source, long pos, int length) {
+		if(value != null) {
+			byte[] text = bytes(value.toString());
+			this.escape(text, 0, text.length);
+		}
+		else if(source != null && length > 0) {
+			byte[] text = source.subbyte(pos, pos + length);
+			this.escape(text, 0, text.length);
+		}
+		this.put((byte)'"');
+	}
+
+	private void writeIndent(int level) {
+		if(!this.ndjson) {
+			this.put((byte)'\n');
+			for(int i = 0; i < level; i++) {
+				this.put((byte)' ');
+				this.put((byte)' ');
+			}
+		}
+	}
+
+	private void escape(byte[] text, int start, int end) {
+		ByteBuffer b = this.buffer;
+		for(int i = start; i < end; i++) {
+			if(b.remaining() < 6) {
+				this.drain();
+			}
+			int c = text[i] & 0xff;
+			if(c >= 0x20 && c != '"' && c != '\\') {
+				b.put((byte)c);
+				continue;
+			}
+			b.put((byte)'\\');
+			switch(c) {
+			case '"':  b.put((byte)'"'); break;
+			case '\\': b.put((byte)'\\'); break;
+			case '\n': b.put((byte)'n'); break;
+			case '\r': b.put((byte)'r'); break;
+			case '\t': b.put((byte)'t'); break;
+			default:
+				b.put((byte)'u');
+				b.put((byte)'0');
+				b.put((byte)'0');
+				b.put(Hex[c >> 4]);
+				b.put(Hex[c & 0xf]);
+			}
+		}
+	}
+
+	private void put(byte c) {
+		if(!this.buffer.hasRemaining()) {
+			this.drain();
+		}
+		this.buffer.put(c);
+	}
+
+	private void put(byte[] text) {
+		if(this.buffer.remaining() < text.length) {
+			this.drain();
+		}
+		this.buffer.put(text);
+	}
+
+	private void putLong(long n) {
+		if(this.buffer.remaining() < 20) {
+			this.drain();
+		}
+		if(n == 0) {
+			this.buffer.put((byte)'0');
+			return;
+		}
+		int start = this.buffer.position();
+		for(; n > 0; n /= 10) {
+			this.buffer.put((byte)('0' + n % 10));
+		}
+		for(int i = start, j = this.buffer.position() - 1; i < j; i++, j--) {
+			byte c = this.buffer.get(i);
+			this.buffer.put(i, this.buffer.get(j));
+			this.buffer.put(j, c);
+		}
+	}
+
+	private void drain() {
+		this.buffer.flip();
+		try {
+			while(this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+		}
+		catch(IOException e) {
+			ConsoleUtils.exit(1, "IO error: " + e.getMessage());
+		}
+		this.buffer.clear();
+	}
+
+	public final void flush() {
+		if(this.buffer.position() > 0) {
+			this.drain();
+		}
+	}
+}
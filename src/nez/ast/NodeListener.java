@@ -0,0 +1,13 @@
+package nez.ast;
+
+/*
+ * NodeListener
+ * Receives the children of the top-level node as soon as they are final,
+ * that is, when no enclosing fail point can roll them back. The children
+ * handed to the listener are removed from the top-level node, so that the
+ * parser keeps only the current child in memory (see Context.streamNodes).
+ */
+
+public interface NodeListener {
+	public void commit(Node child);
+}
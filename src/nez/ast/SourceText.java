@@ -0,0 +1,65 @@
+package nez.ast;
+
+/*
+ * SourceText
+ * A CharSequence view of a token in the source. No String is made while
+ * the token is ASCII; otherwise the token is decoded once on demand.
+ */
+
+public class SourceText implements CharSequence {
+	private final Source source;
+	private final long start;
+	private final long end;
+	private int ascii = -1;        // -1: unknown, 0: no, 1: yes
+	private String decoded = null;
+
+	public SourceText(Source source, long start, long end) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
+	}
+
+	private boolean isASCII() {
+		if(this.ascii == -1) {
+			this.ascii = 1;
+			for(long i = this.start; i < this.end; i++) {
+				if(this.source.byteAt(i) >= 0x80) {
+					this.ascii = 0;
+					break;
+				}
+			}
+		}
+		return this.ascii == 1;
+	}
+
+	@Override
+	public int length() {
+		return this.isASCII() ? (int)(this.end - this.start) : this.toString().length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return this.isASCII() ? (char)this.source.byteAt(this.start + index) : this.toString().charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if(this.isASCII()) {
+			return new SourceText(this.source, this.start + start, this.start + end);
+		}
+		return this.toString().subSequence(start, end);
+	}
+
+	/* compares the bytes without decoding */
+	public final boolean equals(byte[] text) {
+		return text.length == this.end - this.start && this.source.match(this.start, text);
+	}
+
+	@Override
+	public String toString() {
+		if(this.decoded == null) {
+			this.decoded = this.source.substring(this.start, this.end);
+		}
+		return this.decoded;
+	}
+}
@@ -1,19 +1,27 @@
 package nez.ast;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import nez.util.UList;
 
 public class Tag {
-	private static HashMap<String, Tag> idMap = new HashMap<String, Tag>();
+	private static ConcurrentHashMap<String, Tag> idMap = new ConcurrentHashMap<String, Tag>();
 	private static UList<Tag> tagNameList = new UList<Tag>(new Tag[64]);
 	
 	public final static Tag tag(String tagName) {
+		Tag tag = idMap.get(tagName);
+		if(tag == null) {
+			tag = newTag(tagName);
+		}
+		return tag;
+	}
+
+	private synchronized static Tag newTag(String tagName) {
 		Tag tag = idMap.get(tagName);
 		if(tag == null) {
 			tag = new Tag(idMap.size(), tagName);
-			idMap.put(tagName, tag);
 			tagNameList.add(tag);
+			idMap.put(tagName, tag);  // published after tagNameList
 		}
 		return tag;
 	}
@@ -0,0 +1,75 @@
+package nez.ast;
+
+import java.util.Arrays;
+
+/*
+ * TextPool
+ * Interns tokens by their source bytes. A token that is already in the
+ * pool is found by hashing and comparing the bytes, without making a String.
+ */
+
+public class TextPool {
+	private byte[][] keys = new byte[256][];
+	private String[] texts = new String[256];
+	private int size = 0;
+
+	public final String intern(Source source, long pos, int length) {
+		int hash = 0;
+		for(long i = pos; i < pos + length; i++) {
+			hash = hash * 31 + source.byteAt(i);
+		}
+		int mask = this.keys.length - 1;
+		int index = hash & mask;
+		for(byte[] key = this.keys[index]; key != null; key = this.keys[index]) {
+			if(key.length == length && source.match(pos, key)) {
+				return this.texts[index];
+			}
+			index = (index + 1) & mask;
+		}
+		byte[] key = source.subbyte(pos, pos + length);
+		String text = source.substring(pos, pos + length);
+		this.keys[index] = key;
+		this.texts[index] = text;
+		this.size++;
+		if(this.size * 2 > this.keys.length) {
+			this.rehash();
+		}
+		return text;
+	}
+
+	private void rehash() {
+		byte[][] keys = this.keys;
+		String[] texts = this.texts;
+		this.keys = new byte[keys.length * 2][];
+		this.texts = new String[keys.length * 2];
+		int mask = this.keys.length - 1;
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != null) {
+				int index = hash(keys[i]) & mask;
+				while(this.keys[index] != null) {
+					index = (index + 1) & mask;
+				}
+				this.keys[index] = keys[i];
+				this.texts[index] = texts[i];
+			}
+		}
+	}
+
+	private static int hash(byte[] key) {
+		int hash = 0;
+		for(byte b : key) {
+			hash = hash * 31 + (b & 0xff);
+		}
+		return hash;
+	}
+
+	public final int size() {
+		return this.size;
+	}
+
+	public final void clear() {
+		Arrays.fill(this.keys, null);
+		Arrays.fill(this.texts, null);
+		this.size = 0;
+	}
+}
@@ -1,15 +1,16 @@
 package nez.expr;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import nez.Grammar;
 import nez.ast.SourcePosition;
 import nez.ast.Tag;
 import nez.util.StringUtils;
 import nez.util.UList;
-import nez.util.UMap;
 
 
 public class Factory {
-	public final static UMap<Expression> uniqueMap = new UMap<Expression>();
+	public final static ConcurrentHashMap<String, Expression> uniqueMap = new ConcurrentHashMap<String, Expression>();
 	static Expression intern(Expression e) {
 		if(e.internId == 0) {
 			StringBuilder sb = new StringBuilder();
@@ -25,10 +26,15 @@ public class Factory {
 			String key = sb.toString();
 			Expression u = uniqueMap.get(key);
 			if(u == null) {
-				u = e;
-				e.s = null;
-				e.internId = uniqueMap.size() + 1;
-				uniqueMap.put(key, e);
+				synchronized(uniqueMap) {
+					u = uniqueMap.get(key);
+					if(u == null) {
+						u = e;
+						e.s = null;
+						e.internId = uniqueMap.size() + 1;
+						uniqueMap.put(key, e);
+					}
+				}
 			}
 			assert(u.getClass() == e.getClass());
 			return u;
@@ -4,6 +4,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 
+import nez.main.Verbose;
+
 public abstract class GrammarVisitor {
 	HashMap<Class<?>, Method> methodMap = new HashMap<Class<?>, Method>();
 	public final void visit(Expression e) {
@@ -34,7 +36,7 @@ public abstract class GrammarVisitor {
 			try {
 				m = this.getClass().getMethod(name, c);
 			} catch (NoSuchMethodException e) {
-				System.out.println(e);
+				Verbose.debug(e);  // visitExpression()
 				return null;
 			} catch (SecurityException e) {
 				return null;
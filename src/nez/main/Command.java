@@ -90,6 +90,7 @@ public abstract class Command {
 	static {
 		load("check", "nez.main.CheckCommand");
 		load("parse", "nez.main.ParseCommand");
+		load("bench", "nez.main.BenchCommand");
 		load("rel", "nez.x.RelationCommand");
 		load("cc", "nez.cc.GeneratorCommand");
 		load("peg", "nez.cc.GrammarCommand");
@@ -1,16 +1,25 @@
 package nez.main;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 import nez.Grammar;
 import nez.Production;
+import nez.RecordParser;
 import nez.SourceContext;
 import nez.ast.ASTWriter;
+import nez.ast.BinaryASTWriter;
+import nez.ast.JSONWriter;
 import nez.ast.Transformer;
 import nez.expr.GrammarChecker;
 import nez.expr.NezParser;
 import nez.expr.NezParserCombinator;
+import nez.runtime.MemoPolicy;
+import nez.runtime.MemoProfile;
 import nez.runtime.MemoTable;
+import nez.runtime.RuleProfiler;
+import nez.runtime.SamplingProfiler;
+import nez.runtime.Speculation;
 import nez.util.ConsoleUtils;
 import nez.util.FlagUtils;
 import nez.util.StringUtils;
@@ -44,6 +53,54 @@ public class CommandConfigure {
 	// -o, --output
 	public String OutputFileName = null;
 
+	// --threads
+	private int Threads = 1;
+	private ForkJoinPool pool = null;  // shared by the records and the speculations of a command
+
+	// --records, --boundary
+	public String RecordRule = null;
+	public String RecordTag = "List";
+	public String Boundary = "\n";
+
+	// --speculate
+	public String[] SpeculativeRules = null;
+
+	// --memo:train:<file>
+	public String MemoProfileOutput = null;
+
+	// --memo:profile:<file>
+	public MemoProfile MemoProfileInput = null;
+
+	// --memo:policy:<name>
+	public String MemoPolicyName = null;
+
+	// --profile:csv:<file>, --profile:flame:<file>
+	public String ProfileCSV = null;
+	public String ProfileFlameGraph = null;
+	private RuleProfiler ruleProfiler = null;
+
+	// --profile:sample:<file>, --profile:interval:<us>
+	public String ProfileSamples = null;
+	public int SamplingInterval = 1000;
+	private SamplingProfiler samplingProfiler = null;
+
+	// --metrics:json:<file>, --metrics:prom:<file>
+	public String MetricsJSON = null;
+	public String MetricsPrometheus = null;
+	private Metrics metrics = null;
+
+	// --ast:compact
+	public boolean CompactAST = false;
+
+	// --ast:stream
+	public boolean StreamAST = false;
+
+	// --ast:arena
+	public boolean ArenaAST = false;
+
+	// --ast:json, --ast:ndjson, --ast:binary
+	public String ASTFormat = null;
+
 	// -W
 	public int WarningLevel = 1;
 	
@@ -60,7 +117,7 @@ public class CommandConfigure {
 		ConsoleUtils.println("nez <command> optional files");
 		ConsoleUtils.println("  -p | --peg <filename>      Specify an Nez grammar file");
 		ConsoleUtils.println("  -e | --expr  <text>        Specify an Nez grammar text");
-		ConsoleUtils.println("  -i | --input <filenames>   Specify input files");
+		ConsoleUtils.println("  -i | --input <filenames>   Specify input files (-: streaming stdin)");
 		ConsoleUtils.println("  -t | --text  <string>      Specify an input text");
 		ConsoleUtils.println("  -o | --output <filename>   Specify an output file");
 		ConsoleUtils.println("  -s | --start <NAME>        Specify Non-Terminal as the starting point (default: File)");
@@ -71,6 +128,29 @@ public class CommandConfigure {
 		ConsoleUtils.println("  --memo:x                   Memo configuration");
 		ConsoleUtils.println("     none|packrat|window|slide|notrace");
 		ConsoleUtils.println("  --memo:<num>               Expected backtrack distance (default: 256)");
+		ConsoleUtils.println("  --memo:window:<num>        Memoizing <num> positions behind the head");
+		ConsoleUtils.println("  --memo:offheap:<MB>        Packrat table in off-heap memory (default: 256MB)");
+		ConsoleUtils.println("  --memo:fail                Memoizing only failures, in bits (full input)");
+		ConsoleUtils.println("  --memo:fail:<num>          Memoizing only failures at <num> positions behind the head");
+		ConsoleUtils.println("  --memo:policy:<name>       Memo policy (adaptive|static|<class>)");
+		ConsoleUtils.println("  --memo:train:<file>        Writing the statistics of memo points into <file>");
+		ConsoleUtils.println("  --memo:profile:<file>      Memoizing only the profitable points in <file>");
+		ConsoleUtils.println("  --enable:jit               Compiling the grammar into JVM bytecode");
+		ConsoleUtils.println("  --threads:<num>            Parsing input files on <num> threads (default: cores)");
+		ConsoleUtils.println("  --records:<NAME>[#Tag]     Parsing each file as <NAME> records split in parallel");
+		ConsoleUtils.println("  --boundary:<text>          Record boundary to split files at (default: \\n)");
+		ConsoleUtils.println("  --speculate:<NAME>,..      Evaluating the choices of <NAME> in parallel (experimental)");
+		ConsoleUtils.println("  --profile:csv:<file>       Writing per-rule time, bytes and memo hits in CSV");
+		ConsoleUtils.println("  --profile:flame:<file>     Writing per-rule time in collapsed stacks (flamegraph.pl)");
+		ConsoleUtils.println("  --profile:sample:<file>    Writing hot rules and instructions by sampling");
+		ConsoleUtils.println("  --profile:interval:<us>    Sampling interval (default: 1000us)");
+		ConsoleUtils.println("  --metrics:json:<file>      Writing parse latency, throughput, memo and AST metrics in JSON");
+		ConsoleUtils.println("  --metrics:prom:<file>      Writing the metrics in the Prometheus text format");
+		ConsoleUtils.println("  --ast:compact              Building trees in primitive arrays (less memory)");
+		ConsoleUtils.println("  --ast:stream               Writing top-level subtrees as soon as they are final");
+		ConsoleUtils.println("  --ast:arena                Reusing the nodes of the last tree (less GC)");
+		ConsoleUtils.println("  --ast:json | --ast:ndjson  Writing trees in JSON (one tree per line in ndjson)");
+		ConsoleUtils.println("  --ast:binary               Writing trees in the binary format (see BinaryAST)");
 		ConsoleUtils.println("  --verbose                  Printing Debug infomation");
 		ConsoleUtils.println("  --verbose:memo             Printing Memoization information");
 		ConsoleUtils.println("  -X <class>                 Specify an extension class");
@@ -123,7 +203,7 @@ public class CommandConfigure {
 			}
 			else if ((argument.equals("-i") || argument.equals("--input")) && (index < args.length)) {
 				InputFileLists = new UList<String>(new String[4]);
-				while(index < args.length && !args[index].startsWith("-")) {
+				while(index < args.length && (!args[index].startsWith("-") || args[index].equals("-"))) {
 					InputFileLists.add(args[index]);
 					index = index + 1;
 					InputFileIndex = 0;
@@ -151,7 +231,58 @@ public class CommandConfigure {
 					ProductionOption = FlagUtils.unsetFlag(ProductionOption, Production.PackratParsing);
 				}
 				else if(argument.equals("--memo:packrat")) {
-					defaultTable = MemoTable.newPackratHashTable(0, 0, 0);
+					defaultTable = MemoTable.newOpenHashTable(0, 0, 0);
+				}
+				else if(argument.startsWith("--memo:offheap")) {
+					long mb = 256;
+					if(argument.startsWith("--memo:offheap:")) {
+						mb = StringUtils.parseInt(argument.substring(15), -1);
+						if(mb <= 0) {
+							showUsage("unknown option: " + argument);
+						}
+					}
+					defaultTable = MemoTable.newOffHeapTable(0, 0, 0, mb * 1024 * 1024);
+				}
+				else if(argument.equals("--memo:fail")) {
+					defaultTable = MemoTable.newFailureTable(0, 0, 0, false);
+				}
+				else if(argument.startsWith("--memo:fail:")) {
+					int w = StringUtils.parseInt(argument.substring(12), -1);
+					if(w > 0) {
+						WindowSize = w;
+						defaultTable = MemoTable.newFailureTable(0, 0, 0, true);
+					}
+					else {
+						showUsage("unknown option: " + argument);
+					}
+				}
+				else if(argument.startsWith("--memo:policy:")) {
+					MemoPolicyName = argument.substring(14);
+				}
+				else if(argument.startsWith("--memo:train:")) {
+					MemoProfileOutput = argument.substring(13);
+					Verbose.PackratParsing = true;  // collecting statistics
+					ProductionOption = FlagUtils.unsetFlag(ProductionOption, Production.Tracing);
+				}
+				else if(argument.startsWith("--memo:profile:")) {
+					try {
+						MemoProfileInput = MemoProfile.load(argument.substring(15));
+					}
+					catch(IOException e) {
+						ConsoleUtils.exit(1, "cannot open: " + argument.substring(15));
+					}
+				}
+				else if(argument.startsWith("--memo:window")) {
+					defaultTable = MemoTable.newSlidingWindowTable(0, 0, 0);
+					if(argument.startsWith("--memo:window:")) {
+						int w = StringUtils.parseInt(argument.substring(14), -1);
+						if(w > 0) {
+							WindowSize = w;
+						}
+						else {
+							showUsage("unknown option: " + argument);
+						}
+					}
 				}
 				else {
 					int w = StringUtils.parseInt(argument.substring(7), -1);
@@ -166,7 +297,7 @@ public class CommandConfigure {
 			else if(argument.startsWith("--enable:")) {
 				if(argument.endsWith("packrat")) {
 					this.ProductionOption |= Production.PackratParsing;
-					defaultTable = MemoTable.newPackratHashTable(0, 0, 0);
+					defaultTable = MemoTable.newOpenHashTable(0, 0, 0);
 				}
 				else if(argument.endsWith(":prediction") || argument.endsWith(":predict")) {
 					this.ProductionOption |= Production.Prediction;
@@ -174,6 +305,9 @@ public class CommandConfigure {
 				else if(argument.endsWith(":tracing") || argument.endsWith(":trace")) {
 					this.ProductionOption |= Production.Tracing;
 				}
+				else if(argument.endsWith(":jit")) {
+					this.ProductionOption |= Production.ByteCode;
+				}
 				else if(argument.endsWith(":log")) {
 					RecorderFileName = "nezrec.csv";  // -Xrec
 				}
@@ -188,6 +322,71 @@ public class CommandConfigure {
 				else if(argument.endsWith(":prediction") || argument.endsWith(":predict")) {
 					this.ProductionOption = FlagUtils.unsetFlag(this.ProductionOption, Production.Prediction);
 				}
+				else if(argument.endsWith(":jit")) {
+					this.ProductionOption = FlagUtils.unsetFlag(this.ProductionOption, Production.ByteCode);
+				}
+			}
+			else if(argument.startsWith("--threads")) {
+				Threads = Runtime.getRuntime().availableProcessors();
+				if(argument.startsWith("--threads:")) {
+					int n = StringUtils.parseInt(argument.substring(10), -1);
+					if(n > 0) {
+						Threads = n;
+					}
+					else {
+						showUsage("unknown option: " + argument);
+					}
+				}
+			}
+			else if(argument.startsWith("--records:")) {
+				RecordRule = argument.substring(10);
+				int loc = RecordRule.indexOf('#');
+				if(loc > 0) {
+					RecordTag = RecordRule.substring(loc+1);
+					RecordRule = RecordRule.substring(0, loc);
+				}
+			}
+			else if(argument.startsWith("--boundary:")) {
+				Boundary = StringUtils.unquoteString(argument.substring(11));
+				if(Boundary.length() == 0) {
+					showUsage("unknown option: " + argument);
+				}
+			}
+			else if(argument.startsWith("--profile:csv:")) {
+				ProfileCSV = argument.substring(14);
+			}
+			else if(argument.startsWith("--profile:flame:")) {
+				ProfileFlameGraph = argument.substring(16);
+			}
+			else if(argument.startsWith("--profile:sample:")) {
+				ProfileSamples = argument.substring(17);
+			}
+			else if(argument.startsWith("--profile:interval:")) {
+				SamplingInterval = StringUtils.parseInt(argument.substring(19), -1);
+				if(SamplingInterval <= 0) {
+					showUsage("unknown option: " + argument);
+				}
+			}
+			else if(argument.startsWith("--metrics:json:")) {
+				MetricsJSON = argument.substring(15);
+			}
+			else if(argument.startsWith("--metrics:prom:")) {
+				MetricsPrometheus = argument.substring(15);
+			}
+			else if(argument.equals("--ast:compact")) {
+				CompactAST = true;
+			}
+			else if(argument.equals("--ast:stream")) {
+				StreamAST = true;
+			}
+			else if(argument.equals("--ast:arena")) {
+				ArenaAST = true;
+			}
+			else if(argument.equals("--ast:json") || argument.equals("--ast:ndjson") || argument.equals("--ast:binary")) {
+				ASTFormat = argument.substring(6);
+			}
+			else if(argument.startsWith("--speculate:")) {
+				SpeculativeRules = argument.substring(12).split(",");
 			}
 			else if(argument.startsWith("-Xrec")) {
 				RecorderFileName = "nezrec.csv";
@@ -224,6 +423,29 @@ public class CommandConfigure {
 				this.showUsage("unknown option: " + argument);
 			}
 		}
+		/* the parallel paths build one tree per input and write it when done */
+		if(this.getThreads() > 1 || this.RecordRule != null) {
+			String mode = (this.RecordRule != null) ? "--records" : "--threads";
+			if(this.StreamAST) {
+				ConsoleUtils.exit(1, "--ast:stream cannot be used with " + mode);
+			}
+			if(this.ArenaAST) {
+				ConsoleUtils.exit(1, "--ast:arena cannot be used with " + mode);
+			}
+		}
+		/* the arena gives AST nodes, in place of the transformer's */
+		if(this.ArenaAST && this.CompactAST) {
+			ConsoleUtils.exit(1, "--ast:arena cannot be used with --ast:compact");
+		}
+		/* a binary file holds one tree */
+		if("binary".equals(this.ASTFormat)) {
+			if(this.StreamAST) {
+				ConsoleUtils.exit(1, "--ast:binary cannot be used with --ast:stream");
+			}
+			if(this.InputFileLists != null && this.InputFileLists.contains("-")) {
+				ConsoleUtils.exit(1, "--ast:binary cannot be used with a stream input (-)");
+			}
+		}
 	}
 
 	public final Command getCommand() {
@@ -277,11 +499,46 @@ public class CommandConfigure {
 	private int ProductionOption = Production.DefaultOption;
 	
 	public final Production getProduction(String start) {
-		Production p = getGrammar().getProduction(start, ProductionOption);
+		return this.configure(getGrammar().getProduction(start, ProductionOption), start);
+	}
+
+	/* the record rule in the grammar of p, without loading the grammar again */
+	public final Production getRecordProduction(Production p) {
+		return this.configure(p.getRule().getGrammar().getProduction(this.RecordRule, ProductionOption), this.RecordRule);
+	}
+
+	private Production configure(Production p, String start) {
 		if(p == null) {
 			ConsoleUtils.exit(1, "undefined nonterminal: " + start);
 		}
 		p.config(this.defaultTable, WindowSize);
+		if(this.SpeculativeRules != null) {
+			p.setSpeculation(this.newSpeculation());
+		}
+		if(this.MemoProfileInput != null) {
+			p.setMemoProfile(this.MemoProfileInput);
+		}
+		if(this.MemoPolicyName != null) {
+			p.setMemoPolicy(MemoPolicy.newPolicy(this.MemoPolicyName));
+		}
+		if(this.ProfileCSV != null || this.ProfileFlameGraph != null) {
+			if(this.ruleProfiler == null) {
+				this.ruleProfiler = new RuleProfiler();
+			}
+			p.setRuleProfiler(this.ruleProfiler);
+		}
+		if(this.ProfileSamples != null) {
+			if(this.samplingProfiler == null) {
+				this.samplingProfiler = new SamplingProfiler(this.SamplingInterval);
+			}
+			p.setSamplingProfiler(this.samplingProfiler);
+		}
+		if(this.MetricsJSON != null || this.MetricsPrometheus != null) {
+			if(this.metrics == null) {
+				this.metrics = new Metrics();
+			}
+			p.setMetrics(this.metrics);
+		}
 		return p;
 	}
 
@@ -289,6 +546,21 @@ public class CommandConfigure {
 		return this.getProduction(this.StartingPoint);
 	}
 
+	private ForkJoinPool getPool() {
+		if(this.pool == null) {
+			this.pool = new ForkJoinPool(this.getThreads());
+		}
+		return this.pool;
+	}
+
+	public final RecordParser newRecordParser(Production record) {
+		return new RecordParser(record, StringUtils.toUtf8(Boundary), this.getPool());
+	}
+
+	public final Speculation newSpeculation() {
+		return new Speculation(this.getPool(), this.SpeculativeRules);
+	}
+
 	public final boolean hasInput() {
 		if(this.InputFileIndex == -1) {
 			this.InputText = Command.readMultiLine(">>> ", "... ");
@@ -297,6 +569,11 @@ public class CommandConfigure {
 		return this.InputText != null || this.InputFileIndex < this.InputFileLists.size();
 	}
 	
+	/* input files are parsed in parallel; the shell mode is sequential */
+	public final int getThreads() {
+		return (this.InputFileIndex == -1) ? 1 : this.Threads;
+	}
+
 	public final void setInputFileList(UList<String> list) {
 		this.InputFileIndex = 0;
 		this.InputFileLists = list;
@@ -311,6 +588,9 @@ public class CommandConfigure {
 		if(this.InputFileIndex < this.InputFileLists.size()) {
 			String f = this.InputFileLists.ArrayValues[this.InputFileIndex];
 			this.InputFileIndex ++;
+			if(f.equals("-")) {
+				return SourceContext.newStreamSourceContext("(stdin)", System.in);
+			}
 			try {
 				return SourceContext.loadSource(f);
 			} catch (IOException e) {
@@ -340,8 +620,50 @@ public class CommandConfigure {
 		return null;
 	}
 
+	/* the memo profile of p, the profiles and the metrics, at the end of a command */
+	public final void writeProfiles(Production p) {
+		this.shutdown();
+		if(this.MemoProfileOutput != null) {
+			p.saveMemoProfile(this.MemoProfileOutput);
+		}
+		if(this.ruleProfiler != null) {
+			if(this.ProfileCSV != null) {
+				this.ruleProfiler.writeCSV(this.ProfileCSV);
+			}
+			if(this.ProfileFlameGraph != null) {
+				this.ruleProfiler.writeFlameGraph(this.ProfileFlameGraph);
+			}
+		}
+		if(this.samplingProfiler != null) {
+			this.samplingProfiler.stop();
+			this.samplingProfiler.report(this.ProfileSamples);
+		}
+		if(this.metrics != null) {
+			if(this.MetricsJSON != null) {
+				this.metrics.writeJSON(this.MetricsJSON);
+			}
+			if(this.MetricsPrometheus != null) {
+				this.metrics.writePrometheus(this.MetricsPrometheus);
+			}
+		}
+	}
+
+	/* the worker threads, at the end of a command */
+	public final void shutdown() {
+		if(this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+	}
+
 	public final Transformer getTransformer() {
-		return new ASTWriter();
+		if("binary".equals(this.ASTFormat)) {
+			return new BinaryASTWriter(true, this.CompactAST);
+		}
+		if(this.ASTFormat != null) {
+			return new JSONWriter(this.ASTFormat.equals("ndjson"), this.CompactAST);
+		}
+		return new ASTWriter(this.CompactAST);
 	}
 
 }
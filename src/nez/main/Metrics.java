@@ -0,0 +1,282 @@
+package nez.main;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import nez.util.FileBuilder;
+import nez.util.UList;
+import nez.util.UMap;
+
+/*
+ * Metrics
+ * A registry of counters, gauges and histograms, aggregated over parses
+ * and threads. Production.setMetrics() feeds the parser metrics below after
+ * each parse. Recorder logs one CSV line per input. The registry is instead
+ * exported as a whole, in JSON (with percentiles) or in the Prometheus text
+ * format. formatJSON() and formatPrometheus() return the text, e.g., for an
+ * HTTP endpoint.
+ */
+
+public class Metrics {
+	public abstract static class Metric {
+		public final String name;
+		public final String help;
+		Metric(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+		abstract String getType();
+		abstract void formatJSON(StringBuilder sb);
+		abstract void formatPrometheus(StringBuilder sb);
+	}
+
+	public final static class Counter extends Metric {
+		private final AtomicLong value = new AtomicLong();
+		Counter(String name, String help) {
+			super(name, help);
+		}
+		public final void inc() {
+			this.value.incrementAndGet();
+		}
+		public final void add(long n) {
+			this.value.addAndGet(n);
+		}
+		public final long get() {
+			return this.value.get();
+		}
+		@Override
+		String getType() {
+			return "counter";
+		}
+		@Override
+		void formatJSON(StringBuilder sb) {
+			sb.append(", \"value\": ").append(this.get());
+		}
+		@Override
+		void formatPrometheus(StringBuilder sb) {
+			sb.append(this.name).append(" ").append(this.get()).append("\n");
+		}
+	}
+
+	public final static class Gauge extends Metric {
+		private volatile double value = 0;
+		Gauge(String name, String help) {
+			super(name, help);
+		}
+		public final void set(double value) {
+			this.value = value;
+		}
+		public final double get() {
+			return this.value;
+		}
+		@Override
+		String getType() {
+			return "gauge";
+		}
+		@Override
+		void formatJSON(StringBuilder sb) {
+			sb.append(", \"value\": ").append(number(this.get()));
+		}
+		@Override
+		void formatPrometheus(StringBuilder sb) {
+			sb.append(this.name).append(" ").append(number(this.get())).append("\n");
+		}
+	}
+
+	/* exponential buckets: start, start*factor, ..; and +Inf */
+	public final static class Histogram extends Metric {
+		private final double[] bounds;  // the upper bounds (inclusive)
+		private final long[] counts;
+		private long count = 0;
+		private double sum = 0;
+		private double min = 0;
+		private double max = 0;
+
+		Histogram(String name, String help, double start, double factor, int size) {
+			super(name, help);
+			this.bounds = new double[size];
+			this.counts = new long[size + 1];
+			double b = start;
+			for(int i = 0; i < size; i++) {
+				this.bounds[i] = b;
+				b *= factor;
+			}
+		}
+
+		public final void observe(double v) {
+			this.observe(v, 1);
+		}
+
+		/* n observations of v */
+		public final synchronized void observe(double v, long n) {
+			if(n > 0) {
+				int i = 0;
+				while(i < this.bounds.length && v > this.bounds[i]) {
+					i++;
+				}
+				this.counts[i] += n;
+				if(this.count == 0 || v < this.min) {
+					this.min = v;
+				}
+				if(this.count == 0 || v > this.max) {
+					this.max = v;
+				}
+				this.count += n;
+				this.sum += v * n;
+			}
+		}
+
+		public final synchronized long getCount() {
+			return this.count;
+		}
+
+		public final synchronized double getSum() {
+			return this.sum;
+		}
+
+		/* q: 0.0 .. 1.0; interpolated in the bucket */
+		public final synchronized double percentile(double q) {
+			double rank = q * this.count;
+			long c = 0;
+			for(int i = 0; i < this.counts.length; i++) {
+				if(this.counts[i] > 0 && c + this.counts[i] >= rank) {
+					double lower = (i == 0) ? this.min : Math.max(this.bounds[i - 1], this.min);
+					double upper = (i == this.bounds.length) ? this.max : Math.min(this.bounds[i], this.max);
+					return lower + (upper - lower) * (rank - c) / this.counts[i];
+				}
+				c += this.counts[i];
+			}
+			return this.max;
+		}
+
+		@Override
+		String getType() {
+			return "histogram";
+		}
+
+		@Override
+		synchronized void formatJSON(StringBuilder sb) {
+			sb.append(", \"count\": ").append(this.count);
+			sb.append(", \"sum\": ").append(number(this.sum));
+			if(this.count > 0) {
+				sb.append(", \"min\": ").append(number(this.min));
+				sb.append(", \"max\": ").append(number(this.max));
+				sb.append(", \"mean\": ").append(number(this.sum / this.count));
+				sb.append(", \"p50\": ").append(number(this.percentile(0.50)));
+				sb.append(", \"p90\": ").append(number(this.percentile(0.90)));
+				sb.append(", \"p99\": ").append(number(this.percentile(0.99)));
+			}
+			sb.append(", \"buckets\": {");
+			for(int i = 0; i < this.counts.length; i++) {
+				String le = (i == this.bounds.length) ? "+Inf" : number(this.bounds[i]);
+				sb.append((i == 0) ? "" : ", ").append("\"").append(le).append("\": ").append(this.counts[i]);
+			}
+			sb.append("}");
+		}
+
+		@Override
+		synchronized void formatPrometheus(StringBuilder sb) {
+			long c = 0;
+			for(int i = 0; i < this.counts.length; i++) {
+				String le = (i == this.bounds.length) ? "+Inf" : number(this.bounds[i]);
+				c += this.counts[i];
+				sb.append(this.name).append("_bucket{le=\"").append(le).append("\"} ").append(c).append("\n");
+			}
+			sb.append(this.name).append("_sum ").append(number(this.sum)).append("\n");
+			sb.append(this.name).append("_count ").append(this.count).append("\n");
+		}
+	}
+
+	private final UList<Metric> metricList = new UList<Metric>(new Metric[32]);
+	private final UMap<Metric> metricMap = new UMap<Metric>();
+
+	/* the parser metrics */
+	public final Counter parses = counter("nez_parses_total", "Parses");
+	public final Counter failures = counter("nez_parse_failures_total", "Parses that failed");
+	public final Counter consumed = counter("nez_consumed_bytes_total", "Bytes consumed by parses");
+	public final Histogram latency = histogram("nez_parse_latency_seconds", "Latency of a parse", 1.0e-5, 2, 24);
+	public final Histogram throughput = histogram("nez_parse_throughput_kib_per_second", "Throughput of a parse", 1, 2, 24);
+	public final Counter backtracks = counter("nez_backtracks_total", "Failures that moved back in the input");
+	public final Histogram backtrackLength = histogram("nez_backtrack_length_bytes", "Backtrack lengths from the head position (rounded down to a power of two)", 1, 2, 32);
+	public final Counter memoStored = counter("nez_memo_stored_total", "Memo entries stored");
+	public final Counter memoUsed = counter("nez_memo_used_total", "Memo entries used");
+	public final Gauge memoHitRatio = gauge("nez_memo_hit_ratio", "Memo entries used per stored entry");
+	public final Histogram astNodes = histogram("nez_ast_nodes", "AST nodes constructed by a parse", 1, 4, 16);
+	public final Gauge instructions = gauge("nez_grammar_instructions", "Instructions of the last compiled production");
+	public final Gauge memoPoints = gauge("nez_grammar_memo_points", "Memo points of the last compiled production");
+
+	/* the hit ratio is updated with the counters, so that it is consistent across threads */
+	public final synchronized void observeMemo(long stored, long used) {
+		this.memoStored.add(stored);
+		this.memoUsed.add(used);
+		long total = this.memoStored.get();
+		this.memoHitRatio.set(total == 0 ? 0 : (double)this.memoUsed.get() / total);
+	}
+
+	private synchronized Metric get(String name, Metric m) {
+		Metric defined = this.metricMap.get(name);
+		if(defined == null) {
+			this.metricMap.put(name, m);
+			this.metricList.add(m);
+			return m;
+		}
+		if(defined.getClass() != m.getClass()) {
+			throw new RuntimeException("metric " + name + " is a " + defined.getType());
+		}
+		return defined;
+	}
+
+	public final Counter counter(String name, String help) {
+		return (Counter)this.get(name, new Counter(name, help));
+	}
+
+	public final Gauge gauge(String name, String help) {
+		return (Gauge)this.get(name, new Gauge(name, help));
+	}
+
+	public final Histogram histogram(String name, String help, double start, double factor, int size) {
+		return (Histogram)this.get(name, new Histogram(name, help, start, factor, size));
+	}
+
+	public final synchronized String formatJSON() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		for(int i = 0; i < this.metricList.size(); i++) {
+			Metric m = this.metricList.ArrayValues[i];
+			sb.append("  \"").append(m.name).append("\": {\"type\": \"").append(m.getType()).append("\"");
+			sb.append(", \"help\": \"").append(m.help).append("\"");
+			m.formatJSON(sb);
+			sb.append((i + 1 < this.metricList.size()) ? "},\n" : "}\n");
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	public final synchronized String formatPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		for(Metric m : this.metricList) {
+			sb.append("# HELP ").append(m.name).append(" ").append(m.help).append("\n");
+			sb.append("# TYPE ").append(m.name).append(" ").append(m.getType()).append("\n");
+			m.formatPrometheus(sb);
+		}
+		return sb.toString();
+	}
+
+	public final void writeJSON(String path) {
+		FileBuilder fb = new FileBuilder(path);
+		fb.write(this.formatJSON());
+		fb.flush();
+	}
+
+	public final void writePrometheus(String path) {
+		FileBuilder fb = new FileBuilder(path);
+		fb.write(this.formatPrometheus());
+		fb.flush();
+	}
+
+	static String number(double d) {
+		if(d == (long)d) {
+			return String.valueOf((long)d);
+		}
+		return String.valueOf(d);
+	}
+}
@@ -1,9 +1,25 @@
 package nez.main;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import nez.Production;
+import nez.RecordParser;
 import nez.SourceContext;
+import nez.ast.AST;
+import nez.ast.ASTArena;
+import nez.ast.ASTWriter;
+import nez.ast.CompactNode;
 import nez.ast.Node;
+import nez.ast.NodeListener;
+import nez.ast.Tag;
 import nez.ast.Transformer;
+import nez.runtime.Speculation;
 import nez.util.ConsoleUtils;
 import nez.util.UList;
 
@@ -18,11 +34,34 @@ class ParseCommand extends Command {
 		Recorder rec = config.getRecorder();
 		Production p = config.getProduction();
 		p.record(rec);
+		if(config.RecordRule != null) {
+			Production record = config.getRecordProduction(p);
+			this.parseRecords(config, record, rec);
+			config.writeProfiles(record);
+			return;
+		}
+		if(config.getThreads() > 1) {
+			this.parseParallel(config, p, rec);
+			config.writeProfiles(p);
+			return;
+		}
+		ASTArena arena = config.ArenaAST ? new ASTArena() : null;
 		while(config.hasInput()) {
 			SourceContext file = config.getInputSourceContext();
 			Transformer trans = config.getTransformer();
+			if(file.isStreaming()) {
+				this.parseStream(config, p, file, trans);
+				continue;
+			}
+			if(config.StreamAST) {
+				this.parseListening(config, p, file, trans);
+				continue;
+			}
+			if(arena != null) {
+				arena.reset();  // the last tree has been written
+			}
 			file.start(rec);
-			Node node = p.parse(file, trans.newNode());
+			Node node = p.parse(file, (arena != null) ? arena.newBaseNode() : trans.newNode());
 			file.done(rec);
 			if(node == null) {
 				ConsoleUtils.println(file.getSyntaxErrorMessage());
@@ -36,6 +75,115 @@ class ParseCommand extends Command {
 			}
 			trans.transform(config.getOutputFileName(file), node);
 		}
+		config.writeProfiles(p);
+	}
+
+	private void parseRecords(CommandConfigure config, Production p, Recorder rec) {
+		RecordParser rp = config.newRecordParser(p);
+		Tag tag = Tag.tag(config.RecordTag);
+		while(config.hasInput()) {
+			SourceContext file = config.getInputSourceContext();
+			Transformer trans = config.getTransformer();
+			long t1 = System.nanoTime();
+			Node node;
+			try {
+				node = rp.parse(file, trans.newNode(), tag);
+			}
+			catch(IOException e) {
+				ConsoleUtils.exit(1, "cannot open: " + file.getResourceName());
+				return;
+			}
+			long t2 = System.nanoTime();
+			SourceContext stopped = rp.getStoppedContext();
+			if(stopped.hasUnconsumed()) {
+				ConsoleUtils.println(stopped.getSyntaxErrorMessage());
+			}
+			if(rec != null) {
+				rec.setFile("I.File",  file.getResourceName());
+				rec.setCount("I.Size", file.length());
+				Recorder.recordLatencyMS(rec, "P.Latency", t1, t2);
+				Recorder.recordThroughputKPS(rec, "P.Throughput", stopped.getPosition(), t1, t2);
+				rec.log();
+			}
+			trans.transform(config.getOutputFileName(file), node);
+		}
+	}
+
+	private void parseParallel(final CommandConfigure config, final Production p, Recorder rec) {
+		final Transformer trans = config.getTransformer();
+		ParallelInputs<Node> inputs = new ParallelInputs<Node>(config.getThreads()) {
+			@Override
+			Node parse(SourceContext file) {
+				return file.isStreaming() ? null : p.parse(file, trans.newNode());
+			}
+			@Override
+			void done(SourceContext file, Node node) {
+				if(file.isStreaming()) {
+					parseStream(config, p, file, trans);
+					return;
+				}
+				if(node == null) {
+					ConsoleUtils.println(file.getSyntaxErrorMessage());
+					return;
+				}
+				if(file.hasUnconsumed()) {
+					ConsoleUtils.println(file.getUnconsumedMessage());
+				}
+				trans.transform(config.getOutputFileName(file), node);
+			}
+		};
+		inputs.run(config);
+		inputs.record(rec);
+	}
+
+	/* writes the children of the top-level node as soon as they are final */
+	private void parseListening(CommandConfigure config, Production p, SourceContext file, final Transformer trans) {
+		final String path = config.getOutputFileName(file);
+		final int[] count = { 0 };
+		Node node = p.parse(file, trans.newNode(), new NodeListener() {
+			@Override
+			public void commit(Node child) {
+				trans.transform(path, child);
+				count[0]++;
+			}
+		});
+		if(node == null) {
+			ConsoleUtils.println(file.getSyntaxErrorMessage());
+			return;
+		}
+		if(file.hasUnconsumed()) {
+			ConsoleUtils.println(file.getUnconsumedMessage());
+		}
+		if(count[0] == 0) {  // not streamable
+			trans.transform(path, node);
+		}
+		else if(node instanceof AST) {
+			for(AST child : (AST)node) {
+				trans.transform(path, child);
+			}
+		}
+		else if(node instanceof CompactNode) {
+			for(CompactNode child = ((CompactNode)node).getFirstChild(); child != null; child = child.getNextSibling()) {
+				trans.transform(path, child);
+			}
+		}
+	}
+
+	/* parses a stream record by record; only the current record is kept in memory */
+	private void parseStream(CommandConfigure config, Production p, SourceContext file, Transformer trans) {
+		while(file.hasUnconsumed()) {
+			long pos = file.getPosition();
+			Node node = p.parse(file, trans.newNode());
+			if(node == null) {
+				ConsoleUtils.println(file.getSyntaxErrorMessage());
+				return;
+			}
+			if(file.getPosition() == pos) {
+				ConsoleUtils.println(file.getUnconsumedMessage());
+				return;
+			}
+			trans.transform(config.getOutputFileName(file), node);
+		}
 	}
 }
 
@@ -45,34 +193,62 @@ class CheckCommand extends Command {
 		return "grammar validator";
 	}
 
+	private UList<String> failedInput;
+	private int totalCount, failureCount, unconsumedCount;
+
 	@Override
 	public
 	void exec(CommandConfigure config) {
-		UList<String> failedInput = new UList<String>(new String[4]);
+		this.failedInput = new UList<String>(new String[4]);
+		this.totalCount = 0;
+		this.failureCount = 0;
+		this.unconsumedCount = 0;
 		Recorder rec = config.getRecorder();
-		Production product = config.getProduction();
+		final Production product = config.getProduction();
 		product.disable(Production.ASTConstruction);
 		product.record(rec);
-		int totalCount = 0, failureCount = 0, unconsumedCount = 0;
-		while(config.hasInput()) {
-			SourceContext file = config.getInputSourceContext();
-			totalCount++;
-			file.start(rec);
-			boolean result = product.match(file);
-			file.done(rec);
-			product.verboseMemo();
-			if(!result) {
-				ConsoleUtils.println(file.getSyntaxErrorMessage());
-				failedInput.add(file.getResourceName());
-				failureCount++;
-				continue;
+		Production checked = product;
+		if(config.RecordRule != null) {
+			Production record = config.getRecordProduction(product);
+			record.disable(Production.ASTConstruction);
+			checked = record;
+			RecordParser rp = config.newRecordParser(record);
+			while(config.hasInput()) {
+				SourceContext file = config.getInputSourceContext();
+				boolean result = false;
+				try {
+					result = rp.match(file);
+				}
+				catch(IOException e) {
+					ConsoleUtils.exit(1, "cannot open: " + file.getResourceName());
+				}
+				this.checked(rp.getStoppedContext(), result);
 			}
-			if(file.hasUnconsumed()) {
-				ConsoleUtils.println(file.getUnconsumedMessage());
-				unconsumedCount++;
-			}
-			if(rec != null) {
-				rec.log();
+		}
+		else if(config.getThreads() > 1) {
+			ParallelInputs<Boolean> inputs = new ParallelInputs<Boolean>(config.getThreads()) {
+				@Override
+				Boolean parse(SourceContext file) {
+					return product.match(file);
+				}
+				@Override
+				void done(SourceContext file, Boolean result) {
+					checked(file, result);
+				}
+			};
+			inputs.run(config);
+			inputs.record(rec);
+		}
+		else {
+			while(config.hasInput()) {
+				SourceContext file = config.getInputSourceContext();
+				file.start(rec);
+				boolean result = product.match(file);
+				file.done(rec);
+				product.verboseMemo();
+				if(this.checked(file, result) && rec != null) {
+					rec.log();
+				}
 			}
 		}
 		if(totalCount > 1){
@@ -82,11 +258,209 @@ class CheckCommand extends Command {
 					unconsumedCount + " uncosumed, " +
 					(100 - 100.0 * (unconsumedCount+failureCount)/totalCount) + "% passed.");
 		}
+		config.writeProfiles(checked);
 		if(failedInput.size() > 0) {
 			ConsoleUtils.exit(1, "failed: " + failedInput);
 		}
 	}
 
+	private boolean checked(SourceContext file, boolean result) {
+		totalCount++;
+		if(!result) {
+			ConsoleUtils.println(file.getSyntaxErrorMessage());
+			failedInput.add(file.getResourceName());
+			failureCount++;
+			return false;
+		}
+		if(file.hasUnconsumed()) {
+			ConsoleUtils.println(file.getUnconsumedMessage());
+			unconsumedCount++;
+		}
+		return true;
+	}
+
+}
+
+
+class BenchCommand extends Command {
+	@Override
+	public String getDesc() {
+		return "parser benchmark";
+	}
+
+	// repeatedly parses the same input after warming up the VM
+	final static long WarmupTime  = 1000;  // ms
+	final static long MeasureTime = 3000;  // ms
+	final static String NullDevice = "/dev/null";
+
+	@Override
+	public void exec(CommandConfigure config) {
+		Production p = config.getProduction();
+		Speculation speculation = null;
+		if(config.SpeculativeRules != null) {
+			speculation = config.newSpeculation();
+			p.setSpeculation(null);  // measures the sequential choice first
+		}
+		while(config.hasInput()) {
+			SourceContext file = config.getInputSourceContext();
+			Transformer trans = config.getTransformer();
+			if(p.parse(file, trans.newNode()) == null) {
+				ConsoleUtils.println(file.getSyntaxErrorMessage());
+				continue;
+			}
+			if(config.ASTFormat != null) {
+				file.rollback(0);
+				Node node = p.parse(file, trans.newNode());
+				measureWriter(new ASTWriter(config.CompactAST), node, file);
+				measureWriter(trans, node, file);
+			}
+			if(speculation == null) {
+				measure(p, file, trans, "");
+				continue;
+			}
+			measure(p, file, trans, " (sequential)");
+			p.setSpeculation(speculation);
+			measure(p, file, trans, " (speculative)");
+			p.setSpeculation(null);
+		}
+		config.shutdown();
+	}
+
+	private void measure(Production p, SourceContext file, Transformer trans, String label) {
+		repeat(p, file, trans, WarmupTime);
+		long t1 = System.nanoTime();
+		long count = repeat(p, file, trans, MeasureTime);
+		long t2 = System.nanoTime();
+		double ns = (double)(t2 - t1) / count;
+		ConsoleUtils.println(String.format("%s%s: %d iterations, %.1f ns/parse, %.1f parses/s", 
+				file.getResourceName(), label, count, ns, 1.0e9 / ns));
+	}
+
+	/* writes the same tree into the null device */
+	private void measureWriter(Transformer trans, Node node, SourceContext file) {
+		repeatWriter(trans, node, WarmupTime);
+		long t1 = System.nanoTime();
+		long count = repeatWriter(trans, node, MeasureTime);
+		long t2 = System.nanoTime();
+		double ns = (double)(t2 - t1) / count;
+		ConsoleUtils.println(String.format("%s (%s): %d iterations, %.1f ns/write, %.1f MB/s", 
+				file.getResourceName(), trans.getClass().getSimpleName(), count, ns, file.length() * 1.0e3 / ns));
+	}
+
+	private long repeatWriter(Transformer trans, Node node, long ms) {
+		long count = 0;
+		long end = System.currentTimeMillis() + ms;
+		do {
+			trans.transform(NullDevice, node);
+			count++;
+		}
+		while(System.currentTimeMillis() < end);
+		return count;
+	}
+
+	private long repeat(Production p, SourceContext file, Transformer trans, long ms) {
+		long count = 0;
+		long end = System.currentTimeMillis() + ms;
+		do {
+			for(int i = 0; i < 100; i++) {
+				file.rollback(0);
+				p.parse(file, trans.newNode());
+			}
+			count += 100;
+		}
+		while(System.currentTimeMillis() < end);
+		return count;
+	}
 }
 
+/*
+ * ParallelInputs
+ * Parses the input files on a pool of workers that share one compiled
+ * Production. Each input has its own context and memo table; the results
+ * are handed back to the calling thread in the input order, so that the
+ * output and the error messages keep the order of the files.
+ */
+
+abstract class ParallelInputs<T> {
+	private final int threads;
+	private int  totalCount = 0;
+	private long totalLength = 0;
+	private long startingNanoTime = 0;
+	private long endingNanoTime = 0;
+
+	ParallelInputs(int threads) {
+		this.threads = threads;
+	}
+
+	/* runs on a worker */
+	abstract T parse(SourceContext file);
+
+	/* runs on the calling thread, in the input order */
+	abstract void done(SourceContext file, T result);
+
+	final void run(CommandConfigure config) {
+		ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+		ArrayDeque<SourceContext> files = new ArrayDeque<SourceContext>();
+		ArrayDeque<Future<T>> results = new ArrayDeque<Future<T>>();
+		this.startingNanoTime = System.nanoTime();
+		try {
+			while(config.hasInput()) {
+				final SourceContext file = config.getInputSourceContext();
+				files.add(file);
+				results.add(pool.submit(new Callable<T>() {
+					@Override
+					public T call() {
+						return parse(file);
+					}
+				}));
+				if(results.size() > this.threads * 4) {  // bounds the parsed inputs held
+					this.next(files, results);
+				}
+			}
+			while(!results.isEmpty()) {
+				this.next(files, results);
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		this.endingNanoTime = System.nanoTime();
+	}
+
+	private void next(ArrayDeque<SourceContext> files, ArrayDeque<Future<T>> results) {
+		SourceContext file = files.poll();
+		T result;
+		try {
+			result = results.poll().get();
+		}
+		catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		this.totalCount++;
+		if(!file.isStreaming()) {
+			this.totalLength += file.length();
+		}
+		this.done(file, result);
+	}
 
+	final void record(Recorder rec) {
+		if(rec != null) {
+			rec.setCount("I.Files", this.totalCount);
+			rec.setCount("I.Size", this.totalLength);
+			rec.setCount("P.Threads", this.threads);
+			Recorder.recordLatencyMS(rec, "P.Latency", this.startingNanoTime, this.endingNanoTime);
+			Recorder.recordThroughputKPS(rec, "P.Throughput", this.totalLength, this.startingNanoTime, this.endingNanoTime);
+			rec.log();
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package nez.runtime;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nez.expr.Rule;
+import nez.main.Verbose;
+import nez.util.UList;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/*
+ * ByteCodeCompiler
+ * Translates the instruction graph produced by RuntimeCompiler.encode() into
+ * JVM classes. Each rule becomes a static method that runs its instructions
+ * through a tableswitch and calls Context.opXXX() directly, so that the
+ * megamorphic Instruction.exec() dispatch disappears from the hot path.
+ * A large rule is split into several methods, and control flow leaving
+ * a method returns to its caller (finally CompiledCode.run()).
+ * ICallPush is compiled into a direct invokestatic of the callee method
+ * up to MaxCallDepth; deeper calls return to CompiledCode.run(), which
+ * keeps the recursion on the ContextStack instead of the JVM stack.
+ * All methods are generated into one class, which is defined as a hidden
+ * class (Java 15 or later) so that it is unloaded with its Production.
+ * Opcodes that are not listed in opMap are executed by exec() (interpreter).
+ */
+
+public class ByteCodeCompiler implements Opcodes {
+	public final static int MaxInstructionsPerMethod = 200;  // keep methods small enough for HotSpot
+	public final static int MaxCallDepth = 256;  // nested invokestatic calls on the JVM stack
+	public final static int MaxInstructions = 16384;  // larger grammars run faster on the interpreter
+
+	private final static String ContextClass     = Type.getInternalName(Context.class);
+	private final static String InstructionClass = Type.getInternalName(Instruction.class);
+	private final static String InstructionDesc  = Type.getDescriptor(Instruction.class);
+	private final static String RuleMethodDesc   = "(" + Type.getDescriptor(Context.class) + "[" + InstructionDesc + InstructionDesc + "I)" + InstructionDesc;
+
+	private static AtomicInteger classCount = new AtomicInteger();
+
+	static class OpMethod {
+		final String name;
+		final String desc;
+		final boolean alwaysNext;  // opXXX() always returns inst.next
+		OpMethod(String name, Class<?> param, boolean alwaysNext) {
+			this.name = name;
+			this.alwaysNext = alwaysNext;
+			this.desc = (param == null) ? "()" + InstructionDesc : "(" + Type.getDescriptor(param) + ")" + InstructionDesc;
+		}
+	}
+
+	private final static HashMap<Class<?>, OpMethod> opMap = new HashMap<Class<?>, OpMethod>();
+
+	private static void op(Class<?> c, String name, Class<?> param) {
+		opMap.put(c, new OpMethod(name, param, false));
+	}
+
+	private static void next(Class<?> c, String name, Class<?> param) {
+		opMap.put(c, new OpMethod(name, param, true));
+	}
+
+	static {
+		op(IFail.class, "opIFail", null);
+		next(IFailPush.class, "opIFailPush", IFailPush.class);
+		next(IFailPop.class, "opIFailPop", Instruction.class);
+		op(IFailSkip.class, "opIFailSkip", IFailSkip.class);
+		op(IFailCheckSkip.class, "opIFailSkip_", IFailSkip.class);
+		op(ICallPush.class, "opICallPush", ICallPush.class);
+		op(IRet.class, "opIRet", null);
+		next(IPosPush.class, "opIPosPush", IPosPush.class);
+		next(IPosBack.class, "opIPopBack", IPosBack.class);
+		op(IAnyChar.class, "opIAnyChar", IAnyChar.class);
+		op(IByteChar.class, "opIByteChar", IByteChar.class);
+		op(IByteMap.class, "opIByteMap", IByteMap.class);
+		next(INodePush.class, "opNodePush", Instruction.class);
+		next(INodeStore.class, "opNodeStore", INodeStore.class);
+		next(INew.class, "opINew", INew.class);
+		next(ILeftNew.class, "opILeftNew", ILeftNew.class);
+		next(ICapture.class, "opICapture", ICapture.class);
+		next(IReplace.class, "opIReplace", IReplace.class);
+		next(ITag.class, "opITag", ITag.class);
+		op(ILookup.class, "opILookup", ILookup.class);
+		op(IStateLookup.class, "opIStateLookup", IStateLookup.class);
+		op(ILookupNode.class, "opILookupNode", ILookupNode.class);
+		op(IStateLookupNode.class, "opIStateLookupNode", ILookupNode.class);
+		next(IMemoize.class, "opIMemoize", IMemoize.class);
+		next(IStateMemoize.class, "opIStateMemoize", IMemoize.class);
+		next(IMemoizeNode.class, "opIMemoizeNode", IMemoizeNode.class);
+		next(IStateMemoizeNode.class, "opIStateMemoizeNode", IStateMemoizeNode.class);
+		op(IMemoizeFail.class, "opIMemoizeFail", IMemoizeFail.class);
+		op(IStateMemoizeFail.class, "opIStateMemoizeFail", IMemoizeFail.class);
+		next(IDefSymbol.class, "opIDefSymbol", IDefSymbol.class);
+		op(IIsSymbol.class, "opIIsSymbol", IIsSymbol.class);
+		next(IDefIndent.class, "opIDefIndent", IDefIndent.class);
+		op(IIsIndent.class, "opIIsIndent", IIsIndent.class);
+		next(ITablePush.class, "opITablePush", ITablePush.class);
+		next(ITablePop.class, "opITablePop", ITablePop.class);
+		op(INotByteMap.class, "opNByteMap", INotByteMap.class);
+		next(IRepeatedByteMap.class, "opRByteMap", IRepeatedByteMap.class);
+		op(IMultiChar.class, "opMultiChar", IMultiChar.class);
+		op(INotMultiChar.class, "opNMultiChar", INotMultiChar.class);
+	}
+
+	private final RuntimeCompiler bc;
+	private final Instruction[] code;
+	private final int[] ruleIndex;
+	private final String className;
+
+	private ByteCodeCompiler(RuntimeCompiler bc) {
+		this.bc = bc;
+		this.code = new Instruction[bc.codeList.size()];
+		System.arraycopy(bc.codeList.ArrayValues, 0, this.code, 0, this.code.length);
+		this.ruleIndex = new int[this.code.length];
+		for(int i = 0; i < this.ruleIndex.length; i++) {
+			this.ruleIndex[i] = -1;
+		}
+		this.className = "nez/runtime/CompiledParser" + classCount.getAndIncrement();
+	}
+
+	/**
+	 * Compiles the encoded rules into JVM methods.
+	 * @return null if the generated class cannot be loaded (use the interpreter)
+	 */
+	public static CompiledCode compile(RuntimeCompiler bc, UList<Rule> ruleList) {
+		if(bc.getInstructionSize() > MaxInstructions) {
+			Verbose.debug("jit: disabled due to too many instructions: " + bc.getInstructionSize());
+			return null;
+		}
+		ByteCodeCompiler jc = new ByteCodeCompiler(bc);
+		return jc.generate(ruleList);
+	}
+
+	static class MethodBlock {
+		final int start;
+		final int end;
+		MethodBlock(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private CompiledCode generate(UList<Rule> ruleList) {
+		UList<MethodBlock> blocks = new UList<MethodBlock>(new MethodBlock[ruleList.size()]);
+		for(Rule r : ruleList) {
+			RuntimeCompiler.CodeBlock block = bc.ruleMap.get(r.getUniqueName());
+			if(block == null) {
+				continue;
+			}
+			/* a large rule is split into several methods */
+			for(int start = block.start; start < block.end; start += MaxInstructionsPerMethod) {
+				int end = Math.min(start + MaxInstructionsPerMethod, block.end);
+				for(int id = start; id < end; id++) {
+					this.ruleIndex[id] = blocks.size();
+				}
+				blocks.add(new MethodBlock(start, end));
+			}
+		}
+		try {
+			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+			cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, Type.getInternalName(CompiledCode.class), null);
+			this.generateConstructor(cw);
+			this.generateInvoke(cw, blocks.size());
+			for(int i = 0; i < blocks.size(); i++) {
+				this.generateRule(cw, i, blocks.ArrayValues[i]);
+			}
+			cw.visitEnd();
+			Class<?> c = defineClass(className.replace('/', '.'), cw.toByteArray());
+			CompiledCode cc = (CompiledCode)c.newInstance();
+			cc.init(this.code, this.ruleIndex);
+			Verbose.debug("jit: " + ruleList.size() + " rules are compiled into " + blocks.size() + " methods");
+			return cc;
+		}
+		catch(Throwable e) {
+			Verbose.debug("jit: disabled due to " + e);
+		}
+		return null;
+	}
+
+	private static Class<?> defineClass(String name, byte[] b) throws Exception {
+		/* the generated class must share the runtime package with nez.runtime */
+		try {
+			/* Java 15 or later: a hidden class is unloaded when it is no longer used */
+			Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			Object options = Array.newInstance(option, 0);
+			Method m = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+			MethodHandles.Lookup lookup = (MethodHandles.Lookup)m.invoke(MethodHandles.lookup(), b, true, options);
+			return lookup.lookupClass();
+		}
+		catch(ClassNotFoundException e) {
+		}
+		catch(NoSuchMethodException e) {
+		}
+		/* otherwise, the class stays in the class loader of nez.runtime */
+		try {
+			/* Java 9 or later */
+			Method m = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+			return (Class<?>)m.invoke(MethodHandles.lookup(), b);
+		}
+		catch(NoSuchMethodException e) {
+		}
+		Method m = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class);
+		m.setAccessible(true);
+		return (Class<?>)m.invoke(CompiledCode.class.getClassLoader(), name, b, 0, b.length);
+	}
+
+	private void generateConstructor(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(CompiledCode.class), "<init>", "()V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/* Instruction invoke(int rule, Context sc, Instruction pc) */
+	private void generateInvoke(ClassWriter cw, int size) {
+		MethodVisitor mv = cw.visitMethod(0, "invoke", "(I" + Type.getDescriptor(Context.class) + InstructionDesc + ")" + InstructionDesc, null, null);
+		mv.visitCode();
+		Label fallback = new Label();
+		if(size > 0) {
+			Label[] labels = new Label[size];
+			for(int i = 0; i < size; i++) {
+				labels[i] = new Label();
+			}
+			mv.visitVarInsn(ILOAD, 1);
+			mv.visitTableSwitchInsn(0, size - 1, fallback, labels);
+			for(int i = 0; i < size; i++) {
+				mv.visitLabel(labels[i]);
+				mv.visitVarInsn(ALOAD, 2);
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitFieldInsn(GETFIELD, Type.getInternalName(CompiledCode.class), "code", "[" + InstructionDesc);
+				mv.visitVarInsn(ALOAD, 3);
+				mv.visitInsn(ICONST_0);
+				mv.visitMethodInsn(INVOKESTATIC, className, ruleMethod(i), RuleMethodDesc);
+				mv.visitInsn(ARETURN);
+			}
+		}
+		mv.visitLabel(fallback);
+		mv.visitVarInsn(ALOAD, 3);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitMethodInsn(INVOKEVIRTUAL, InstructionClass, "exec", "(" + Type.getDescriptor(Context.class) + ")" + InstructionDesc);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private static String ruleMethod(int index) {
+		return "rule" + index;
+	}
+
+	/* locals */
+	private final static int SC   = 0;
+	private final static int CODE = 1;
+	private final static int PC   = 2;
+	private final static int DEPTH = 3;
+
+	/* static Instruction ruleN(Context sc, Instruction[] code, Instruction pc, int depth) */
+	private void generateRule(ClassWriter cw, int index, MethodBlock block) {
+		MethodVisitor mv = cw.visitMethod(ACC_STATIC, ruleMethod(index), RuleMethodDesc, null, null);
+		mv.visitCode();
+		Label loop = new Label();
+		Label exit = new Label();
+		Label[] labels = new Label[block.end - block.start];
+		for(int i = 0; i < labels.length; i++) {
+			labels[i] = new Label();
+		}
+		mv.visitLabel(loop);
+		mv.visitVarInsn(ALOAD, PC);
+		mv.visitFieldInsn(GETFIELD, InstructionClass, "id", "I");
+		mv.visitTableSwitchInsn(block.start, block.end - 1, exit, labels);
+		for(int id = block.start; id < block.end; id++) {
+			mv.visitLabel(labels[id - block.start]);
+			this.generateInstruction(mv, this.code[id], index, block, labels, loop);
+		}
+		mv.visitLabel(exit);  // the next instruction belongs to another rule
+		mv.visitVarInsn(ALOAD, PC);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private void generateInstruction(MethodVisitor mv, Instruction inst, int index, MethodBlock block, Label[] labels, Label loop) {
+		OpMethod op = opMap.get(inst.getClass());
+		if(op == null) {
+			/* interpreter fallback */
+			loadInstruction(mv, inst, null);
+			mv.visitVarInsn(ALOAD, SC);
+			mv.visitMethodInsn(INVOKEVIRTUAL, InstructionClass, "exec", "(" + Type.getDescriptor(Context.class) + ")" + InstructionDesc);
+			mv.visitVarInsn(ASTORE, PC);
+			mv.visitJumpInsn(GOTO, loop);
+			return;
+		}
+		mv.visitVarInsn(ALOAD, SC);
+		if(!op.desc.startsWith("()")) {
+			loadInstruction(mv, inst, Type.getType(op.desc).getArgumentTypes()[0].getInternalName());
+		}
+		mv.visitMethodInsn(INVOKEVIRTUAL, ContextClass, op.name, op.desc);
+		if(inst instanceof IRet) {
+			mv.visitInsn(ARETURN);
+			return;
+		}
+		Instruction next = inst.next;
+		if(op.alwaysNext && block.start <= next.id && next.id < block.end) {
+			mv.visitInsn(POP);
+			mv.visitJumpInsn(GOTO, labels[next.id - block.start]);
+			return;
+		}
+		mv.visitVarInsn(ASTORE, PC);
+		if(inst instanceof ICallPush) {
+			int callee = this.ruleIndex[inst.next.id];
+			if(callee != -1 && this.code[inst.next.id] == inst.next) {
+				Label deep = new Label();
+				mv.visitVarInsn(ILOAD, DEPTH);
+				mv.visitIntInsn(SIPUSH, MaxCallDepth);
+				mv.visitJumpInsn(IF_ICMPGE, deep);
+				mv.visitVarInsn(ALOAD, SC);
+				mv.visitVarInsn(ALOAD, CODE);
+				mv.visitVarInsn(ALOAD, PC);
+				mv.visitVarInsn(ILOAD, DEPTH);
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(IADD);
+				mv.visitMethodInsn(INVOKESTATIC, className, ruleMethod(callee), RuleMethodDesc);
+				mv.visitVarInsn(ASTORE, PC);
+				mv.visitLabel(deep);  // the callee is run by the caller of this method
+			}
+			next = ((ICallPush) inst).jump;
+		}
+		if(next != null && block.start <= next.id && next.id < block.end) {
+			/* direct jump to the likely successor */
+			mv.visitVarInsn(ALOAD, PC);
+			mv.visitFieldInsn(GETFIELD, InstructionClass, "id", "I");
+			mv.visitIntInsn(SIPUSH, next.id);  // ids < MaxInstructions; no constant pool entry
+			mv.visitJumpInsn(IF_ICMPEQ, labels[next.id - block.start]);
+		}
+		mv.visitJumpInsn(GOTO, loop);
+	}
+
+	private void loadInstruction(MethodVisitor mv, Instruction inst, String castClass) {
+		mv.visitVarInsn(ALOAD, CODE);
+		mv.visitIntInsn(SIPUSH, inst.id);
+		mv.visitInsn(AALOAD);
+		if(castClass != null && !castClass.equals(InstructionClass)) {
+			mv.visitTypeInsn(CHECKCAST, castClass);
+		}
+	}
+
+}
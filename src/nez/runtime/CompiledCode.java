@@ -0,0 +1,35 @@
+package nez.runtime;
+
+import nez.SourceContext;
+
+/*
+ * CompiledCode
+ * A set of JVM methods generated from the instruction graph by ByteCodeCompiler.
+ * Each rule is compiled into static methods; instructions outside of them
+ * (e.g., IExit) are executed by the interpreter.
+ */
+
+public abstract class CompiledCode {
+	Instruction[] code;
+	int[] ruleIndex;     // instruction id => compiled method index (-1: interpreted)
+
+	final void init(Instruction[] code, int[] ruleIndex) {
+		this.code = code;
+		this.ruleIndex = ruleIndex;
+	}
+
+	abstract Instruction invoke(int rule, Context sc, Instruction pc);
+
+	public final boolean run(Instruction code, SourceContext sc) {
+		while(code != null) {
+			int id = code.id;
+			if(id >= 0 && id < this.ruleIndex.length && this.ruleIndex[id] != -1) {
+				code = this.invoke(this.ruleIndex[id], sc, code);
+			}
+			else {
+				code = code.exec(sc);
+			}
+		}
+		return sc.getExitStatus();
+	}
+}
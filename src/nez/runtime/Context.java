@@ -1,9 +1,13 @@
 package nez.runtime;
 
+import java.util.Arrays;
+
 import nez.ast.Node;
+import nez.ast.NodeListener;
 import nez.ast.Source;
 import nez.ast.Tag;
 import nez.expr.NezTag;
+import nez.main.Metrics;
 import nez.main.Recorder;
 import nez.main.Verbose;
 import nez.util.ConsoleUtils;
@@ -38,6 +42,15 @@ public abstract class Context implements Source {
 		this.pos = pos;
 	}
 	
+	/* makes this context reusable for the next input */
+	protected void reset() {
+		this.pos = 0;
+		this.head_pos = 0;
+		this.base = null;
+		this.left = null;
+		this.prof = null;
+	}
+
 	public final String getSyntaxErrorMessage() {
 		return this.formatPositionLine("error", this.head_pos, "syntax error");
 	}
@@ -70,71 +83,47 @@ public abstract class Context implements Source {
 	private final static int LazyLeftNew = 4;
 	private final static int LazyNew     = 5;
 	
-	private class DataLog {
-		int     type;
-		long    pos;
-		Object  value;
-		DataLog prev;
-		DataLog next;
-		int id() {
-			if(prev == null) return 0;
-			return prev.id() + 1;
-		}
-		@Override
-		public String toString() {
-			switch(type) {
-			case LazyLink:
-				return "["+id()+"] link<" + this.pos + "," + this.value + ">";
-			case LazyCapture:
-				return "["+id()+"] cap<pos=" + this.pos + ">";
-			case LazyTag:
-				return "["+id()+"] tag<" + this.value + ">";
-			case LazyReplace:
-				return "["+id()+"] replace<" + this.value + ">";
-			case LazyNew:
-				return "["+id()+"] new<pos=" + this.pos + ">"  + "   ## " + this.value  ;
-			case LazyLeftNew:
-				return "["+id()+"] leftnew<pos=" + this.pos + "," + this.value + ">";
-			}
-			return "["+id()+"] nop";
-		}
-	}
+	/*
+	 * the log of AST operations, kept in parallel arrays; a checkpoint is
+	 * the size of the log, so that commit and abort are index arithmetic
+	 */
+	private int[]    logTypes = new int[256];
+	private long[]   logPos = new long[256];
+	private Object[] logValues = new Object[256];
+	private int      logSize = 0;
+	private int      logUsed = 0;   // the high-water mark, cleared in initJumpStack()
 
-	//private DataLog newPoint = null;
-	private DataLog lastAppendedLog = null;
-	private DataLog unusedDataLog = null;
-	
 	private final void pushDataLog(int type, long pos, Object value) {
-		DataLog l;
-		if(this.unusedDataLog == null) {
-			l = new DataLog();
+		int i = this.logSize;
+		if(i == this.logTypes.length) {
+			this.logTypes = Arrays.copyOf(this.logTypes, i * 2);
+			this.logPos = Arrays.copyOf(this.logPos, i * 2);
+			this.logValues = Arrays.copyOf(this.logValues, i * 2);
 		}
-		else {
-			l = this.unusedDataLog;
-			this.unusedDataLog = l.next;
+		this.logTypes[i] = type;
+		this.logPos[i] = pos;
+		this.logValues[i] = value;
+		this.logSize = i + 1;
+		if(this.logSize > this.logUsed) {
+			this.logUsed = this.logSize;
 		}
-		l.type = type;
-		l.pos  = pos;
-		l.value = value;
-		l.prev = lastAppendedLog;
-		l.next = null;
-		lastAppendedLog.next = l;
-		lastAppendedLog = l;
 	}
-	
-	public final Node logCommit(DataLog start) {
-		assert(start.type == LazyNew);
-		long spos = start.pos, epos = spos;
+
+	/* commits the logs from start (a LazyNew) to the last */
+	public final Node logCommit(int start) {
+		assert(this.logTypes[start] == LazyNew);
+		int[] types = this.logTypes;
+		long spos = this.logPos[start], epos = spos;
 		Tag tag = null;
 		Object value = null;
 		int objectSize = 0;
 		Node left = null;
-		for(DataLog cur = start.next; cur != null; cur = cur.next ) {
-			switch(cur.type) {
+		for(int i = start + 1; i < this.logSize; i++) {
+			switch(types[i]) {
 			case LazyLink:
-				int index = (int)cur.pos;
+				int index = (int)this.logPos[i];
 				if(index == -1) {
-					cur.pos = objectSize;
+					this.logPos[i] = objectSize;
 					objectSize++;
 				}
 				else if(!(index < objectSize)) {
@@ -142,30 +131,33 @@ public abstract class Context implements Source {
 				}
 				break;
 			case LazyCapture:
-				epos = cur.pos;
+				epos = this.logPos[i];
 				break;
 			case LazyTag:
-				tag = (Tag)cur.value;
+				tag = (Tag)this.logValues[i];
 				break;
 			case LazyReplace:
-				value = cur.value;
+				value = this.logValues[i];
 				break;
 			case LazyLeftNew:
-				left = commitNode(start, cur, spos, epos, objectSize, left, tag, value);
-				start = cur;
-				spos = cur.pos; 
+				left = commitNode(start, i, spos, epos, objectSize, left, tag, value);
+				start = i;
+				spos = this.logPos[i];
 				epos = spos;
 				tag = null; value = null;
 				objectSize = 1;
 				break;
 			}
 		}
-		return commitNode(start, null, spos, epos, objectSize, left, tag, value);
+		return commitNode(start, this.logSize, spos, epos, objectSize, left, tag, value);
 	}
 
-	private Node commitNode(DataLog start, DataLog end, long spos, long epos,
+	private Node commitNode(int start, int end, long spos, long epos,
 			int objectSize, Node left, Tag tag, Object value) {
 		Node newnode = this.base.newNode(tag, this, spos, epos, objectSize);
+		if(this.prof != null) {
+			this.prof.NodeCount++;
+		}
 		if(left != null) {
 			newnode.link(0, left);
 		}
@@ -173,34 +165,19 @@ public abstract class Context implements Source {
 			newnode.setValue(value);
 		}
 		if(objectSize > 0) {
-//			System.out.println("PREV " + start.prev);
-//			System.out.println(">>> BEGIN");
-//			System.out.println("  LOG " + start);
-			for(DataLog cur = start.next; cur != end; cur = cur.next ) {
-//				System.out.println("  LOG " + cur);
-				if(cur.type == LazyLink) {
-					newnode.link((int)cur.pos, (Node)cur.value);
+			for(int i = start + 1; i < end; i++) {
+				if(this.logTypes[i] == LazyLink) {
+					newnode.link((int)this.logPos[i], (Node)this.logValues[i]);
 				}
 			}
-//			System.out.println("<<< END");
-//			System.out.println("COMMIT " + newnode);
 		}
 		return newnode.commit();
 	}
 
-	public final void logAbort(DataLog checkPoint, boolean isFail) {
-		assert(checkPoint != null);
-//		if(isFail) {
-//			for(DataLog cur = checkPoint.next; cur != null; cur = cur.next ) {
-//				System.out.println("ABORT " + cur);
-//			}
-//		}
-		lastAppendedLog.next = this.unusedDataLog;
-		this.unusedDataLog = checkPoint.next;
-		this.unusedDataLog.prev = null;
-
-		this.lastAppendedLog = checkPoint;
-		this.lastAppendedLog.next = null;
+	/* drops the logs after the checkpoint */
+	public final void logAbort(int checkPoint, boolean isFail) {
+		assert(checkPoint <= this.logSize);
+		this.logSize = checkPoint;
 	}
 
 	
@@ -222,6 +199,9 @@ public abstract class Context implements Source {
 			this.len = utf8.length;
 		}
 		SymbolTableEntry(Tag table, byte[] b) {
+			this.set(table, b);
+		}
+		final void set(Tag table, byte[] b) {
 			this.table = table;
 			this.utf8 = b == null ? new byte[0] : b;
 			this.len = utf8.length;
@@ -239,7 +219,18 @@ public abstract class Context implements Source {
 	}
 
 	public final void pushSymbolTable(Tag table, byte[] s) {
-		this.stackedSymbolTable.add(new SymbolTableEntry(table, s));
+		int top = this.stackedSymbolTable.size();
+		SymbolTableEntry entry = null;
+		if(top < this.stackedSymbolTable.ArrayValues.length) {
+			entry = this.stackedSymbolTable.ArrayValues[top];  // popped entry
+		}
+		if(entry == null) {
+			entry = new SymbolTableEntry(table, s);
+		}
+		else {
+			entry.set(table, s);
+		}
+		this.stackedSymbolTable.add(entry);
 		this.stateCount += 1;
 		this.stateValue = stateCount;
 	}
@@ -269,31 +260,52 @@ public abstract class Context implements Source {
 		Instruction jump;
 		long pos;
 		int  prevFailTop;
-		DataLog lastLog;
+		int  lastLog;     // the size of the log
 	}
 	
 	private ContextStack[] contextStacks = null;
 	private int usedStackTop;
 	private int failStackTop;
 	
+	private final static IExit ExitFailure = new IExit(false);
+	private final static IExit ExitSuccess = new IExit(true);
+
 	public final void initJumpStack(int n, MemoTable memoTable) {
-		this.contextStacks = new ContextStack[n];
-		this.lastAppendedLog = new DataLog();
-		for(int i = 0; i < n; i++) {
-			this.contextStacks[i] = new ContextStack();
+		if(this.contextStacks == null || this.contextStacks.length < n) {
+			this.contextStacks = new ContextStack[n];
+			for(int i = 0; i < n; i++) {
+				this.contextStacks[i] = new ContextStack();
+			}
 		}
-		this.contextStacks[0].jump = new IExit(false);
+		Arrays.fill(this.logValues, 0, this.logUsed, null);  // the nodes of the previous parse
+		this.logSize = 0;
+		this.logUsed = 0;
+		this.contextStacks[0].jump = ExitFailure;
 		this.contextStacks[0].debugFailStackFlag = true;
 		this.contextStacks[0].pos = this.getPosition();
-		this.contextStacks[0].lastLog = this.lastAppendedLog;
-		this.contextStacks[1].jump = new IExit(true);  // for a point of the first called nonterminal
+		this.contextStacks[0].lastLog = 0;
+		this.contextStacks[1].jump = ExitSuccess;  // for a point of the first called nonterminal
 		this.contextStacks[1].pos = this.getPosition();
 		this.failStackTop = 0;
 		this.usedStackTop = 1;
+		this.exitStatus = false;
+		this.stackedSymbolTable.clear(0);
+		this.stateValue = 0;
+		this.stateCount = 0;
+		this.speculating = null;
+		this.streamDisabled = false;
+		this.streamedPos = -1;
 		this.memoTable = memoTable;
 		//Verbose.println("MemoTable: " + this.memoTable.getClass().getSimpleName());
 	}
 
+	/* continues on the same input with the current memo table */
+	public final void continueJumpStack(int n) {
+		int stateCount = this.stateCount;
+		this.initJumpStack(n, this.memoTable);
+		this.stateCount = stateCount;  // new symbol tables never hit the memo entries of the previous ones
+	}
+
 	private ContextStack newUnusedStack() {
 		usedStackTop++;
 		if(contextStacks.length == usedStackTop) {
@@ -307,23 +319,100 @@ public abstract class Context implements Source {
 		return contextStacks[usedStackTop];
 	}
 
+	private boolean exitStatus = false;
+
+	public final boolean getExitStatus() {
+		return this.exitStatus;
+	}
+
+	public final Instruction opIExit(IExit op) {
+		this.exitStatus = op.status;
+		return null;  // terminates the dispatch loop
+	}
+
+	/* the oldest position that the parser may read again */
+	public final long getLowestLivePosition() {
+		if(this.contextStacks == null) {
+			return this.pos;
+		}
+		long low = this.pos;
+		if(this.logSize > 0) {
+			if(this.streamedPos == -1) {
+				return this.contextStacks[0].pos;  // pending nodes refer to the text
+			}
+			low = Math.min(low, this.streamedPos);
+		}
+		for(int i = 2; i <= this.usedStackTop; i++) {
+			if(this.contextStacks[i].pos < low) {
+				low = this.contextStacks[i].pos;
+			}
+		}
+		return low;
+	}
+
+	/* the first position that byteAt() can read; a stream discards the text before it */
+	public long getBufferedStartPosition() {
+		return 0;
+	}
+
 	public final void dumpStack(String op) {
 		System.out.println(op + " F="+this.failStackTop +", T=" +usedStackTop);
 	}
 
+	int sampledId = -1;  // the instruction id for SamplingProfiler
+
+	final int getUsedStackTop() {
+		return this.usedStackTop;
+	}
+
 	public final Instruction opIFailPush(IFailPush op) {
 		ContextStack stackTop = newUnusedStack();
 		stackTop.prevFailTop   = failStackTop;
 		failStackTop = usedStackTop;
 		stackTop.jump = op.failjump;
 		stackTop.pos = this.pos;
-		stackTop.lastLog = this.lastAppendedLog;
-		assert(stackTop.lastLog != null);
-		//stackTop.newPoint = this.newPoint;
+		stackTop.lastLog = this.logSize;
 		stackTop.debugFailStackFlag = true;
 		return op.next;
 	}
 
+	Speculation.Round speculating = null;
+
+	public final Instruction opISpeculate(ISpeculate op) {
+		Speculation.Round round = null;
+		if(this.stackedSymbolTable.size() == 0) {  // symbols are not shared with forked contexts
+			round = op.speculation.start(this, op);
+		}
+		if(round == null) {
+			round = new Speculation.Round(null, null);  // sequential
+		}
+		round.prev = this.speculating;
+		this.speculating = round;
+		return op.next;
+	}
+
+	public final Instruction opISpeculateNext(ISpeculateNext op) {
+		Speculation.Round round = this.speculating;
+		this.speculating = round.prev;
+		return round.select(this, op.start);
+	}
+
+	public final Instruction opISpeculateEnd(ISpeculateEnd op) {
+		Speculation.Round round = this.speculating;
+		this.speculating = round.prev;
+		round.cancel(0);
+		return op.next;
+	}
+
+	/* a context that reads the same input on another thread; null if unsupported */
+	public Context fork() {
+		return null;
+	}
+
+	/* stops a forked context soon */
+	public void cancel() {
+	}
+
 	public final Instruction opIFailPop(Instruction op) {
 		ContextStack stackTop = contextStacks[failStackTop];
 		assert(stackTop.debugFailStackFlag);
@@ -337,8 +426,11 @@ public abstract class Context implements Source {
 		if(this.pos == stackTop.pos) {
 			return opIFail();
 		}
+		if(this.listener != null && stackTop.prevFailTop == 0) {
+			this.streamNodes(stackTop.lastLog);
+		}
 		stackTop.pos = this.pos;
-		stackTop.lastLog = this.lastAppendedLog;
+		stackTop.lastLog = this.logSize;
 		return op.next;
 	}
 
@@ -348,9 +440,11 @@ public abstract class Context implements Source {
 		if(this.pos == stackTop.pos) {
 			return opIFail();
 		}
+		if(this.listener != null && stackTop.prevFailTop == 0) {
+			this.streamNodes(stackTop.lastLog);
+		}
 		stackTop.pos = this.pos;
-		stackTop.lastLog = this.lastAppendedLog;
-		assert(stackTop.lastLog != null);
+		stackTop.lastLog = this.logSize;
 		return op.next;
 	}
 
@@ -363,9 +457,7 @@ public abstract class Context implements Source {
 			this.prof.statBacktrack(stackTop.pos, this.pos);
 		}
 		rollback(stackTop.pos);
-		if(stackTop.lastLog != this.lastAppendedLog) {
-			this.logAbort(stackTop.lastLog, true);
-		}
+		this.logAbort(stackTop.lastLog, true);
 		return stackTop.jump;
 	}
 	
@@ -387,6 +479,7 @@ public abstract class Context implements Source {
 	public final Instruction opICallPush(ICallPush op) {
 		ContextStack top = newUnusedLocalStack();
 		top.jump = op.jump;
+		top.pos = Long.MAX_VALUE;  // a return frame does not pin the input
 		return op.next;
 	}
 	
@@ -444,24 +537,74 @@ public abstract class Context implements Source {
 
 	public final Instruction opNodePush(Instruction op) {
 		ContextStack top = newUnusedLocalStack();
-		top.lastLog = this.lastAppendedLog;
+		top.lastLog = this.logSize;
+		top.pos = Long.MAX_VALUE;  // the pending logs pin the input
 		return op.next;
 	}
 	
 	public final Instruction opNodeStore(INodeStore op) {
 		ContextStack top = popLocalStack();
-		if(top.lastLog.next != null) {
-			Node child = this.logCommit(top.lastLog.next);
-			logAbort(top.lastLog, false);
+		if(top.lastLog < this.logSize) {
+			Node child = this.logCommit(top.lastLog);
+			this.logAbort(top.lastLog, false);
 			if(child != null) {
 				pushDataLog(LazyLink, op.index, child);
 			}
 			this.left = child;
-			//System.out.println("LINK " + this.lastAppendedLog);
 		}
 		return op.next;
 	}
 
+	/* streaming: children of the top-level node are handed to the listener */
+	private NodeListener listener = null;
+	private boolean streamDisabled = false;
+	private long streamedPos = -1;  // pending nodes refer to the text after this (-1: unknown)
+
+	public final void setNodeListener(NodeListener listener) {
+		this.listener = listener;
+	}
+
+	/*
+	 * called when the lowest fail point (a top-level repetition) moves on;
+	 * no logs can be rolled back any more
+	 */
+	private void streamNodes(int checkPoint) {
+		if(this.streamDisabled || checkPoint == this.logSize) {
+			return;
+		}
+		int[] types = this.logTypes;
+		for(int i = checkPoint; i < this.logSize; i++) {
+			if(types[i] == LazyNew || types[i] == LazyLeftNew) {
+				this.streamDisabled = true;  // a node is still open
+				return;
+			}
+		}
+		int root = checkPoint - 1;
+		while(root >= 0 && types[root] != LazyNew && types[root] != LazyLeftNew) {
+			root--;
+		}
+		if(root != this.contextStacks[0].lastLog || types[root] != LazyNew) {
+			this.streamDisabled = true;  // no top-level node, or inside a nested node
+			return;
+		}
+		int last = root + 1;
+		for(int i = root + 1; i < this.logSize; i++) {
+			if(types[i] == LazyLink) {
+				Node child = (Node)this.logValues[i];
+				this.logValues[i] = null;
+				this.listener.commit(child);
+			}
+			else {
+				types[last] = types[i];
+				this.logPos[last] = this.logPos[i];
+				this.logValues[last] = this.logValues[i];
+				last++;
+			}
+		}
+		this.logSize = last;
+		this.streamedPos = this.pos;
+	}
+
 	public final Instruction opINew(INew op) {
 		pushDataLog(LazyNew, this.pos, null); //op.e);
 		return op.next;
@@ -473,10 +616,10 @@ public abstract class Context implements Source {
 	}
 
 	public final Node newTopLevelNode() {
-		for(DataLog cur = this.lastAppendedLog; cur != null; cur = cur.prev) {
-			if(cur.type == LazyNew) {
-				this.left = logCommit(cur);
-				logAbort(cur.prev, false);
+		for(int i = this.logSize - 1; i >= 0; i--) {
+			if(this.logTypes[i] == LazyNew) {
+				this.left = logCommit(i);
+				logAbort(i, false);
 				return this.left;
 			}
 		}
@@ -500,16 +643,100 @@ public abstract class Context implements Source {
 
 	// Memoization
 	MemoTable memoTable;
+
+	public final MemoTable getMemoTable() {
+		return this.memoTable;
+	}
+
+	/* per-parse state of IMonitoredSwitch, indexed by MemoPoint.id */
+	private MemoPolicy memoPolicy = null;
+	private MemoState[] memoStates = null;
+
+	public final void initMemoMonitor(int memoPointSize) {
+		this.initMemoMonitor(memoPointSize, null);
+	}
+
+	/* policy: null for the default (adaptive) */
+	public final void initMemoMonitor(int memoPointSize, MemoPolicy policy) {
+		if(memoPointSize == 0) {
+			this.memoStates = null;
+			return;
+		}
+		this.memoPolicy = (policy == null) ? MemoPolicy.newAdaptivePolicy() : policy;
+		if(this.memoStates != null && this.memoStates.length == memoPointSize) {
+			for(MemoState state : this.memoStates) {
+				state.reset();
+			}
+			return;
+		}
+		this.memoStates = new MemoState[memoPointSize];
+		for(int i = 0; i < memoPointSize; i++) {
+			this.memoStates[i] = new MemoState(i);
+		}
+	}
+
+	private void traceUsed(MemoPoint mp, int consumed) {
+		if(this.memoStates != null) {
+			MemoState state = this.memoStates[mp.id];
+			state.used++;
+			state.saved += consumed;
+		}
+	}
+
+	private void traceFailUsed(MemoPoint mp) {
+		if(this.memoStates != null) {
+			this.memoStates[mp.id].failUsed++;
+		}
+	}
+
+	private void traceStored(MemoPoint mp) {
+		if(this.memoStates != null) {
+			MemoState state = this.memoStates[mp.id];
+			if(++state.stored == this.memoPolicy.window) {
+				state.totalStored += state.stored;
+				state.totalUsed += state.used + state.failUsed;
+				boolean activated = this.memoPolicy.update(state);
+				if(state.trial) {
+					state.trial = false;
+					if(activated) {
+						state.reactivated++;
+					}
+				}
+				else if(!activated) {
+					state.deactivated++;
+				}
+				state.activated = activated;
+				state.skipped = 0;
+				state.clearWindow();
+			}
+		}
+	}
+
+	public final Instruction opIMonitoredSwitch(IMonitoredSwitch op) {
+		if(this.memoStates != null) {
+			MemoState state = this.memoStates[op.memoPoint.id];
+			if(!state.activated) {
+				if(state.backoff == 0 || ++state.skipped < state.backoff) {
+					return op.next;
+				}
+				state.activated = true;  // a trial window
+				state.trial = true;
+				state.trials++;
+			}
+		}
+		return op.activatedNext;
+	}
 	
 	public final Instruction opILookup(ILookup op) {
 		MemoPoint mp = op.memoPoint;
 		MemoEntry m = memoTable.getMemo(this.pos, mp.id);
 		if(m != null) {
-			op.monitor.used();
 			if(m.failed) {
+				this.traceFailUsed(mp);
 				mp.failHit();
 				return opIFail();
 			}
+			this.traceUsed(mp, m.consumed);
 			mp.memoHit(m.consumed);
 			this.consume(m.consumed);
 			return op.skip;
@@ -522,11 +749,12 @@ public abstract class Context implements Source {
 		MemoPoint mp = op.memoPoint;
 		MemoEntry m = memoTable.getMemo2(this.pos, mp.id, stateValue);
 		if(m != null) {
-			op.monitor.used();
 			if(m.failed) {
+				this.traceFailUsed(mp);
 				mp.failHit();
 				return opIFail();
 			}
+			this.traceUsed(mp, m.consumed);
 			mp.memoHit(m.consumed);
 			this.consume(m.consumed);
 			return op.skip;
@@ -539,11 +767,12 @@ public abstract class Context implements Source {
 		MemoPoint mp = op.memoPoint;
 		MemoEntry entry = memoTable.getMemo(this.pos, mp.id);
 		if(entry != null) {
-			op.monitor.used();
 			if(entry.failed) {
+				this.traceFailUsed(mp);
 				mp.failHit();
 				return opIFail();
 			}
+			this.traceUsed(mp, entry.consumed);
 			mp.memoHit(entry.consumed);
 			this.consume(entry.consumed);
 			pushDataLog(LazyLink, op.index, entry.result);
@@ -558,11 +787,12 @@ public abstract class Context implements Source {
 		MemoPoint mp = op.memoPoint;
 		MemoEntry me = memoTable.getMemo2(pos, mp.id, stateValue);
 		if(me != null) {
-			op.monitor.used();
 			if(me.failed) {
+				this.traceFailUsed(mp);
 				mp.failHit();
 				return opIFail();
 			}
+			this.traceUsed(mp, me.consumed);
 			mp.memoHit(me.consumed);
 			consume(me.consumed);
 			pushDataLog(LazyLink, op.index, me.result);
@@ -578,7 +808,7 @@ public abstract class Context implements Source {
 		ContextStack stackTop = contextStacks[this.usedStackTop];
 		int length = (int)(this.pos - stackTop.pos);
 		memoTable.setMemo(stackTop.pos, mp.id, false, null, length, 0);
-		op.monitor.stored();
+		this.traceStored(mp);
 		return this.opIFailPop(op);
 	}
 
@@ -587,7 +817,7 @@ public abstract class Context implements Source {
 		ContextStack stackTop = contextStacks[this.usedStackTop];
 		int length = (int)(this.pos - stackTop.pos);
 		memoTable.setMemo(stackTop.pos, mp.id, false, null, length, stateValue);
-		op.monitor.stored();
+		this.traceStored(mp);
 		return this.opIFailPop(op);
 	}
 
@@ -598,7 +828,7 @@ public abstract class Context implements Source {
 		ContextStack stackTop = contextStacks[this.failStackTop];
 		int length = (int)(this.pos - stackTop.pos);
 		memoTable.setMemo(stackTop.pos, mp.id, false, this.left, length, 0);
-		op.monitor.stored();
+		this.traceStored(mp);
 		return this.opIFailPop(op);
 	}
 
@@ -609,21 +839,21 @@ public abstract class Context implements Source {
 		ContextStack stackTop = contextStacks[this.failStackTop];
 		int length = (int)(this.pos - stackTop.pos);
 		memoTable.setMemo(stackTop.pos, mp.id, false, this.left, length, stateValue);
-		op.monitor.stored();
+		this.traceStored(mp);
 		return this.opIFailPop(op);
 	}
 
 	public final Instruction opIMemoizeFail(IMemoizeFail op) {
 		MemoPoint mp = op.memoPoint;
 		memoTable.setMemo(pos, mp.id, true, null, 0, 0);
-		op.monitor.stored();
+		this.traceStored(mp);
 		return opIFail();
 	}
 
 	public final Instruction opIStateMemoizeFail(IMemoizeFail op) {
 		MemoPoint mp = op.memoPoint;
 		memoTable.setMemo(pos, mp.id, true, null, 0, stateValue);
-		op.monitor.stored();
+		this.traceStored(mp);
 		return opIFail();
 	}
 
@@ -697,10 +927,11 @@ public abstract class Context implements Source {
 		if(!(startIndex < this.length())) {
 			startIndex = this.length() - 1;
 		}
-		if(startIndex < 0) {
-			startIndex = 0;
+		long bufferedIndex = this.getBufferedStartPosition();
+		if(startIndex < bufferedIndex) {
+			startIndex = bufferedIndex;
 		}
-		while(startIndex > 0) {
+		while(startIndex > bufferedIndex) {
 			int ch = byteAt(startIndex);
 			if(ch == '\n') {
 				startIndex = startIndex + 1;
@@ -728,17 +959,18 @@ public abstract class Context implements Source {
 
 	public final Instruction opITablePush(ITablePush op) {
 		ContextStack top = this.newUnusedLocalStack();
-		top.pos = this.stackedSymbolTable.size();
+		top.pos = Long.MAX_VALUE;  // a table frame does not pin the input
+		top.lastLog = this.stackedSymbolTable.size();
 		top.prevFailTop = this.stateValue;
-		//System.out.println("pushtable " + top.pos + " " + top.prevFailTop);
+		//System.out.println("pushtable " + top.lastLog + " " + top.prevFailTop);
 		return op.next;
 	}
 
 	public final Instruction opITablePop(ITablePop op) {
 		ContextStack top = popLocalStack();
-		//System.out.println("poptable " + top.pos + " " + top.prevFailTop);
+		//System.out.println("poptable " + top.lastLog + " " + top.prevFailTop);
 		this.stateValue = top.prevFailTop;
-		this.popSymbolTable((int)top.pos);
+		this.popSymbolTable(top.lastLog);
 		return op.next;
 	}
 
@@ -761,6 +993,42 @@ public abstract class Context implements Source {
 		if(rec != null) {
 			this.prof.parsed(rec, this.getPosition());
 			this.memoTable.record(rec);
+			this.recordMemoStates(rec);
+		}
+	}
+
+	/* collects the statistics of this parse for the metrics (null: off) */
+	public final void start(Metrics m) {
+		if(m != null) {
+			if(this.prof == null) {
+				this.prof = new Prof();
+			}
+			this.prof.init(this.getPosition());
+			this.prof.MemoStored = this.memoTable.CountStored;
+			this.prof.MemoUsed = this.memoTable.CountUsed;
+		}
+	}
+
+	public final void done(Metrics m, boolean matched) {
+		if(m != null) {
+			this.prof.observe(m, this.getPosition(), matched, this.memoTable);
+		}
+	}
+
+	private void recordMemoStates(Recorder rec) {
+		if(this.memoStates != null) {
+			int activated = 0, deactivated = 0, reactivated = 0, trials = 0;
+			for(MemoState state : this.memoStates) {
+				activated += state.activated ? 1 : 0;
+				deactivated += state.deactivated;
+				reactivated += state.reactivated;
+				trials += state.trials;
+			}
+			rec.setText("M.Policy", this.memoPolicy.getName());
+			rec.setCount("M.Activated", activated);
+			rec.setCount("M.Deactivated", deactivated);
+			rec.setCount("M.Trials", trials);
+			rec.setCount("M.Reactivated", reactivated);
 		}
 	}
 
@@ -776,6 +1044,9 @@ public abstract class Context implements Source {
 		long HeadPostion = 0;
 		long LongestBacktrack = 0;
 		int[] BacktrackHistgrams = null;
+		long NodeCount = 0;
+		long MemoStored = 0;  // at the start
+		long MemoUsed = 0;
 		
 		public void init(long pos) {
 			this.startPosition = pos;
@@ -787,6 +1058,7 @@ public abstract class Context implements Source {
 			this.LongestBacktrack = 0;
 			this.HeadPostion = 0;
 			this.BacktrackHistgrams = new int[32];
+			this.NodeCount = 0;
 		}
 		
 		void parsed(Recorder rec, long consumed) {
@@ -811,6 +1083,26 @@ public abstract class Context implements Source {
 			}
 		}
 
+		void observe(Metrics m, long consumed, boolean matched, MemoTable memoTable) {
+			consumed -= this.startPosition;
+			double sec = (System.nanoTime() - this.startingNanoTime) / 1000000000.0;
+			m.parses.inc();
+			if(!matched) {
+				m.failures.inc();
+			}
+			m.consumed.add(consumed);
+			m.latency.observe(sec);
+			if(sec > 0) {
+				m.throughput.observe(consumed / sec / 1024);
+			}
+			m.backtracks.add(this.BacktrackCount);
+			for(int i = 0; i < this.BacktrackHistgrams.length; i++) {
+				m.backtrackLength.observe(1L << i, this.BacktrackHistgrams[i]);
+			}
+			m.observeMemo(memoTable.CountStored - this.MemoStored, memoTable.CountUsed - this.MemoUsed);
+			m.astNodes.observe(this.NodeCount);
+		}
+
 		public final void statBacktrack(long backed_pos, long current_pos) {
 			this.FailureCount ++;
 			long len = current_pos - backed_pos;
@@ -829,7 +1121,7 @@ public abstract class Context implements Source {
 		}
 
 		private void countBacktrackLength(long len) {
-			int n = (int)(Math.log(len) / Math.log(2.0));
+			int n = 63 - Long.numberOfLeadingZeros(len);  // log2(len)
 			BacktrackHistgrams[n] += 1;
 		}
 
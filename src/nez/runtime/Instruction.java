@@ -79,46 +79,77 @@ public abstract class Instruction {
 		return false;
 	}
 	
-	abstract Instruction exec(Context sc) throws TerminationException;
+	abstract Instruction exec(Context sc);
 		
 	public static boolean run(Instruction code, SourceContext sc) {
-		boolean result = false;
-		try {
-			while(true) {
-				code = code.exec(sc);
-			}
+		while(code != null) {
+			code = code.exec(sc);
 		}
-		catch (TerminationException e) {
-			result = e.status;
-		}
-		return result;
+		return sc.getExitStatus();
 	}
 
 	public static boolean debug(Instruction code, SourceContext sc) {
-		boolean result = false;
 		String u = "Start";
 		UList<String> stack = new UList<String>(new String[128]);
 		stack.add("Start");
+		while(code != null) {
+			if(code instanceof ICallPush) {
+				stack.add(u);
+				u = ((ICallPush)code).rule.getLocalName();
+			}
+			if(code instanceof IRet) {
+				u = stack.ArrayValues[stack.size()-1];
+				stack.clear(stack.size()-1);
+			}
+			ConsoleUtils.println(u + "(" + sc.getPosition() + ")  " + code.id + " " + code);
+			code = code.exec(sc);
+		}
+		return sc.getExitStatus();
+	}
+	
+	/* publishes the current instruction to the sampling thread */
+	public static boolean sample(Instruction code, SourceContext sc, SamplingProfiler prof, Instruction[] codeTable, Rule[] ruleTable) {
+		Context c = sc;
+		prof.attach(sc, codeTable, ruleTable);
 		try {
-			while(true) {
-				if(code instanceof ICallPush) {
-					stack.add(u);
-					u = ((ICallPush)code).rule.getLocalName();
-				}
-				if(code instanceof IRet) {
-					u = stack.ArrayValues[stack.size()-1];
-					stack.clear(stack.size()-1);
-				}
-				ConsoleUtils.println(u + "(" + sc.getPosition() + ")  " + code.id + " " + code);
+			while(code != null) {
+				c.sampledId = code.id;
 				code = code.exec(sc);
 			}
 		}
-		catch (TerminationException e) {
-			result = e.status;
+		finally {
+			c.sampledId = -1;
+			prof.detach(sc);
 		}
-		return result;
+		return sc.getExitStatus();
 	}
-	
+
+	/* runs with per-rule statistics; parses are serialized on the profiler */
+	public static boolean profile(Instruction code, SourceContext sc, RuleProfiler prof) {
+		Context c = sc;
+		synchronized(prof) {
+			prof.start();
+			while(code != null) {
+				Instruction inst = code;
+				long pos = sc.getPosition();
+				code = code.exec(sc);
+				if(inst instanceof ICallPush) {
+					prof.enter(((ICallPush)inst).rule, c.getUsedStackTop(), pos);
+				}
+				else if(inst instanceof IRet) {
+					prof.leave(c.getUsedStackTop(), sc.getPosition(), false);
+				}
+				else {
+					if(inst instanceof ILookup) {
+						prof.lookup((ILookup)inst, code);
+					}
+					prof.leave(c.getUsedStackTop(), pos, true);  // unwound by a failure
+				}
+			}
+		}
+		return sc.getExitStatus();
+	}
+
 	static void makeList(Instruction inst, UList<Instruction> l, HashMap<Integer, Instruction> m) {
 		while(inst != null && !m.containsKey(inst.id)) {
 			m.put(inst.id, inst);
@@ -150,7 +181,7 @@ class IFail extends Instruction implements StackOperation {
 //		this.bitmap = AlwaysReject;
 //	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIFail();
 	}
 }
@@ -166,7 +197,7 @@ class IFailPush extends Instruction implements StackOperation {
 		return this.failjump;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIFailPush(this);
 	}
 	@Override
@@ -183,7 +214,7 @@ class IFailPop extends Instruction implements StackOperation {
 		super(e, next);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIFailPop(this);
 	}
 }
@@ -193,11 +224,57 @@ class IFailSkip extends Instruction {
 		super(e, null);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIFailSkip(this);
 	}
 }
 
+/*
+ * ISpeculate
+ * Starts matching the other alternatives of a choice on forked contexts
+ * while the first alternative is tried as usual (see Speculation).
+ */
+
+class ISpeculate extends Instruction {
+	final Speculation speculation;
+	final Instruction[] entries;       // the sequential choice from each alternative but the first
+	final Instruction[] alternatives;  // match-only code of the same, ending with IExit
+	ISpeculate(Expression e, Speculation speculation, Instruction[] entries, Instruction next) {
+		super(e, next);
+		this.speculation = speculation;
+		this.entries = entries;
+		this.alternatives = new Instruction[entries.length];
+	}
+	@Override
+	Instruction exec(Context sc) {
+		return sc.opISpeculate(this);
+	}
+}
+
+/* the first alternative has failed; jumps to the first speculated success */
+class ISpeculateNext extends Instruction {
+	final ISpeculate start;
+	ISpeculateNext(ISpeculate start) {
+		super(start.e, null);
+		this.start = start;
+	}
+	@Override
+	Instruction exec(Context sc) {
+		return sc.opISpeculateNext(this);
+	}
+}
+
+/* the first alternative has succeeded; cancels the speculation */
+class ISpeculateEnd extends Instruction {
+	ISpeculateEnd(Expression e, Instruction next) {
+		super(e, next);
+	}
+	@Override
+	Instruction exec(Context sc) {
+		return sc.opISpeculateEnd(this);
+	}
+}
+
 /*
  * IFailCheckSkip
  * Check unconsumed repetition
@@ -208,7 +285,7 @@ class IFailCheckSkip extends IFailSkip {
 		super(e);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIFailSkip_(this);
 	}
 }
@@ -226,7 +303,7 @@ class ICallPush extends Instruction implements StackOperation {
 		this.next = labeling(jump);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opICallPush(this);
 	}
 	@Override
@@ -241,7 +318,7 @@ class IRet extends Instruction implements StackOperation {
 		super(e, null);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIRet();
 	}
 	@Override
@@ -256,7 +333,7 @@ class IPosPush extends Instruction {
 		super(e, next);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIPosPush(this);
 	}
 }
@@ -266,7 +343,7 @@ class IPosBack extends Instruction {
 		super(e, next);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIPopBack(this);
 	}
 }
@@ -278,8 +355,8 @@ class IExit extends Instruction {
 		this.status = status;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
-		throw new TerminationException(status);
+	Instruction exec(Context sc) {
+		return sc.opIExit(this);
 	}
 }
 
@@ -292,7 +369,7 @@ class IAnyChar extends Instruction {
 //		this.bitmap = AlwaysAccept;
 //	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIAnyChar(this);
 	}
 }
@@ -310,7 +387,7 @@ class IByteChar extends Instruction {
 //		this.bitmap = AlwaysAccept;
 //	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIByteChar(this);
 	}
 	@Override
@@ -330,7 +407,7 @@ class IByteMap extends Instruction {
 		this.optional = optional;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIByteMap(this);
 	}
 	@Override
@@ -350,7 +427,7 @@ class INodePush extends Instruction {
 		super(e, next);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opNodePush(this);
 	}
 }
@@ -362,7 +439,7 @@ class INodeStore extends Instruction {
 		this.index = e.index;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opNodeStore(this);
 	}
 	@Override
@@ -379,7 +456,7 @@ class INew extends Instruction {
 		this.shift = 0;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opINew(this);
 	}
 }
@@ -391,7 +468,7 @@ class ILeftNew extends Instruction {
 		this.shift = 0;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opILeftNew(this);
 	}
 }
@@ -404,7 +481,7 @@ class ICapture extends Instruction {
 		this.shift = 0;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opICapture(this);
 	}
 }
@@ -416,7 +493,7 @@ class IReplace extends Instruction {
 		this.value = e.value;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIReplace(this);
 	}
 	@Override
@@ -433,7 +510,7 @@ class ITag extends Instruction {
 		this.tag = e.tag;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opITag(this);
 	}
 	@Override
@@ -448,14 +525,12 @@ interface Memoization {
 }
 
 class IMonitoredSwitch extends Instruction {
-	final static IMonitoredSwitch dummyMonitor = new IMonitoredSwitch(null, null);
-	boolean isActivated;
+	final static IMonitoredSwitch dummyMonitor = new IMonitoredSwitch(null, null, null);
+	final MemoPoint memoPoint;  // the activation state is kept in Context
 	Instruction activatedNext = null;
-	int used = 0;
-	int stored = 0;
-	IMonitoredSwitch(Expression e, Instruction next) {
+	IMonitoredSwitch(Expression e, MemoPoint m, Instruction next) {
 		super(e, next);
-		this.isActivated = true;
+		this.memoPoint = m;
 	}
 	void setActivatedNext(Instruction inst) {
 		this.activatedNext = labeling(inst);
@@ -464,27 +539,9 @@ class IMonitoredSwitch extends Instruction {
 	Instruction branch() {
 		return this.activatedNext;
 	}
-	final void stored() {
-		stored++;
-		this.checked();
-	}
-	final void used() {
-		used++;
-	}
-	final void checked() {
-		if(this.isActivated) {
-			if(stored % 32 == 0) {
-				double r = used / (double)stored;
-				//System.out.println("monitor: " + this.used + "/" + this.stored + ", " + r);
-				if(r < 0.0361) {  /* this is a magic number */
-					this.isActivated = false;
-				}
-			}
-		}
-	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
-		return this.isActivated ? this.activatedNext : this.next;
+	Instruction exec(Context sc) {
+		return sc.opIMonitoredSwitch(this);
 	}
 }
 
@@ -504,7 +561,7 @@ class ILookup extends IFailPush implements Memoization {
 		sb.append(" " + this.memoPoint.id);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opILookup(this);
 	}
 }
@@ -514,7 +571,7 @@ class IStateLookup extends ILookup {
 		super(e, monitor, m, next, skip, failjump);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIStateLookup(this);
 	}
 }
@@ -532,7 +589,7 @@ class IMemoize extends Instruction implements Memoization {
 		sb.append(this.getName() + " " + this.memoPoint.id);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIMemoize(this);
 	}
 }
@@ -542,7 +599,7 @@ class IStateMemoize extends IMemoize {
 		super(e, monitor, m, next);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIStateMemoize(this);
 	}
 }
@@ -560,7 +617,7 @@ class IMemoizeFail extends IFail implements Memoization {
 		sb.append(this.getName() + " " + this.memoPoint.id);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIMemoizeFail(this);
 	}
 }
@@ -570,7 +627,7 @@ class IStateMemoizeFail extends IMemoizeFail {
 		super(e, monitor, m);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIStateMemoizeFail(this);
 	}
 }
@@ -582,7 +639,7 @@ class ILookupNode extends ILookup {
 		this.index = e.index;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opILookupNode(this);
 	}
 }
@@ -594,7 +651,7 @@ class IStateLookupNode extends ILookupNode {
 		this.index = e.index;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIStateLookupNode(this);
 	}
 }
@@ -612,7 +669,7 @@ class IMemoizeNode extends INodeStore implements Memoization {
 		sb.append(this.getName() + " " + this.memoPoint.id);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIMemoizeNode(this);
 	}
 }
@@ -622,7 +679,7 @@ class IStateMemoizeNode extends IMemoizeNode {
 		super(e, monitor, m, next);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIStateMemoizeNode(this);
 	}
 }
@@ -641,7 +698,7 @@ class IDefSymbol extends Instruction {
 		sb.append(tableName.name);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIDefSymbol(this);
 	}
 }
@@ -660,7 +717,7 @@ class IIsSymbol extends Instruction {
 		sb.append(tableName.name);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIIsSymbol(this);
 	}
 }
@@ -674,7 +731,7 @@ class IDefIndent extends Instruction {
 		sb.append("defindent");
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIDefIndent(this);
 	}
 }
@@ -688,7 +745,7 @@ class IIsIndent extends Instruction {
 		sb.append("indent");
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opIIsIndent(this);
 	}
 }
@@ -702,7 +759,7 @@ class ITablePush extends Instruction {
 		sb.append("tablepush");
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opITablePush(this);
 	}
 }
@@ -716,7 +773,7 @@ class ITablePop extends Instruction {
 		sb.append("tablepop");
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opITablePop(this);
 	}
 }
@@ -736,7 +793,7 @@ class INotByteMap extends Instruction {
 		this.byteMap[e.byteChar] = true;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opNByteMap(this);
 	}
 	@Override
@@ -758,7 +815,7 @@ class IRepeatedByteMap extends Instruction {
 		this.byteMap[e.byteChar] = true;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opRByteMap(this);
 	}
 	@Override
@@ -780,7 +837,7 @@ class IMultiChar extends Instruction {
 		this.optional = optional;
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opMultiChar(this);
 	}
 
@@ -799,7 +856,7 @@ class INotMultiChar extends IMultiChar {
 		super(e, false, next);
 	}
 	@Override
-	Instruction exec(Context sc) throws TerminationException {
+	Instruction exec(Context sc) {
 		return sc.opNMultiChar(this);
 	}
 }
@@ -17,4 +17,12 @@ class MemoEntryKey extends MemoEntry {
 class MemoEntryList extends MemoEntry {
 	int memoPoint;
 	MemoEntryList next;
-}
\ No newline at end of file
+}
+class MemoEntryRange extends MemoEntry {
+	int  memoPoint;
+	int  reach;       // the furthest position examined, relative to the start
+	int  nodeOffset;  // the position of the result node, relative to the start
+	int  generation;
+	long pos = -1;    // kept only for entries in the span list
+	MemoEntryRange next;
+}
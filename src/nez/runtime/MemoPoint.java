@@ -1,6 +1,14 @@
 package nez.runtime;
 
 import nez.expr.Expression;
+import nez.main.Verbose;
+
+/*
+ * MemoPoint
+ * The statistics are only collected for Verbose.PackratParsing, and 
+ * synchronized since a Production can be shared by many threads.
+ * The per-parse state (e.g., IMonitoredSwitch) lives in Context.
+ */
 
 public final class MemoPoint {
 	public final int id;
@@ -22,19 +30,31 @@ public final class MemoPoint {
 	}
 	
 	void memoHit(int consumed) {
-		this.memoHit += 1;
-		this.hitLength += consumed;
-		if(this.maxLength < consumed) {
-			this.maxLength = consumed;
+		if(Verbose.PackratParsing) {
+			synchronized(this) {
+				this.memoHit += 1;
+				this.hitLength += consumed;
+				if(this.maxLength < consumed) {
+					this.maxLength = consumed;
+				}
+			}
 		}
 	}
 
 	void failHit() {
-		this.memoFailHit += 1;
+		if(Verbose.PackratParsing) {
+			synchronized(this) {
+				this.memoFailHit += 1;
+			}
+		}
 	}
 
 	void miss() {
-		this.memoMiss ++;
+		if(Verbose.PackratParsing) {
+			synchronized(this) {
+				this.memoMiss ++;
+			}
+		}
 	}
 	
 	public final double hitRatio() {
@@ -0,0 +1,101 @@
+package nez.runtime;
+
+import nez.util.ConsoleUtils;
+
+/*
+ * MemoPolicy
+ * Decides whether a monitored memo point (Production.Tracing) keeps
+ * memoizing. update() is called after every window of stores, and
+ * returns whether the point is activated in the next window.
+ *
+ *   static    disables a point whose used/stored is less than UsedRatio
+ *             (the former monitor; never reactivated)
+ *   adaptive  weighs the skipped bytes against the lookup cost in decayed
+ *             windows, and retries a disabled point with a backoff
+ *
+ * Other policies can be given by the class name (--memo:policy:<name>).
+ */
+
+public abstract class MemoPolicy {
+	public final int window;
+
+	protected MemoPolicy(int window) {
+		this.window = window;
+	}
+
+	public abstract String getName();
+
+	public abstract boolean update(MemoState s);
+
+	public static MemoPolicy newStaticPolicy() {
+		return new StaticMemoPolicy();
+	}
+
+	public static MemoPolicy newAdaptivePolicy() {
+		return new AdaptiveMemoPolicy();
+	}
+
+	public static MemoPolicy newPolicy(String name) {
+		if(name.equals("static")) {
+			return newStaticPolicy();
+		}
+		if(name.equals("adaptive")) {
+			return newAdaptivePolicy();
+		}
+		try {
+			return (MemoPolicy)Class.forName(name).newInstance();
+		}
+		catch(Exception e) {
+			ConsoleUtils.exit(1, "unknown memo policy: " + name);
+		}
+		return null;
+	}
+}
+
+class StaticMemoPolicy extends MemoPolicy {
+	public static double UsedRatio = 0.0361;  /* this is a magic number */
+
+	StaticMemoPolicy() {
+		super(32);
+	}
+
+	@Override
+	public String getName() {
+		return "static";
+	}
+
+	@Override
+	public boolean update(MemoState s) {
+		return s.totalUsed / (double)s.totalStored >= UsedRatio;
+	}
+}
+
+class AdaptiveMemoPolicy extends MemoPolicy {
+	public static double Decay = 0.5;
+	public static double LookupCost = 0.5;  // in bytes to parse
+	public static int InitialBackoff = 256;
+	public static int MaxBackoff = 1 << 16;
+
+	AdaptiveMemoPolicy() {
+		super(32);
+	}
+
+	@Override
+	public String getName() {
+		return "adaptive";
+	}
+
+	@Override
+	public boolean update(MemoState s) {
+		int lookup = s.stored + s.used + s.failUsed;
+		double gain = s.saved + s.used + s.failUsed;   // a hit also saves the call
+		s.score = s.score * Decay + gain - lookup * LookupCost;
+		if(s.score >= 0) {
+			s.backoff = 0;
+			return true;
+		}
+		s.score = 0;  // a trial is judged on its own
+		s.backoff = (s.backoff == 0) ? InitialBackoff : Math.min(s.backoff * 2, MaxBackoff);
+		return false;
+	}
+}
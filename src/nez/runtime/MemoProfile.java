@@ -0,0 +1,113 @@
+package nez.runtime;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+
+import nez.util.FileBuilder;
+import nez.util.UList;
+
+/*
+ * MemoProfile
+ * The statistics of memo points, collected by a training run (--memo:train)
+ * and read at compile time (--memo:profile). RuntimeCompiler issues no
+ * memo point for an unprofitable label, so that the nonterminal is called
+ * without lookup, memoize and monitor. The labels that are not in the
+ * profile are memoized as before.
+ *
+ *   # label  count  hit  fail  mean
+ *   js:W	4834	147	2269	1.0
+ */
+
+public class MemoProfile {
+	/* the same threshold as the static memo policy (MemoPolicy) */
+	public static double UsedRatio = 0.0361;
+
+	private final HashMap<String, long[]> stats = new HashMap<String, long[]>();
+
+	public MemoProfile() {
+	}
+
+	public static MemoProfile load(String path) throws IOException {
+		MemoProfile profile = new MemoProfile();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				/* label count hit fail mean; the label may include tabs */
+				int[] tab = new int[4];
+				int end = line.length();
+				for(int i = 3; i >= 0; i--) {
+					tab[i] = line.lastIndexOf('\t', end - 1);
+					if(tab[i] <= 0) {
+						throw new IOException("broken memo profile: " + line);
+					}
+					end = tab[i];
+				}
+				try {
+					long count = Long.parseLong(line.substring(tab[0] + 1, tab[1]));
+					long hit = Long.parseLong(line.substring(tab[1] + 1, tab[2]));
+					long failHit = Long.parseLong(line.substring(tab[2] + 1, tab[3]));
+					double mean = Double.parseDouble(line.substring(tab[3] + 1));
+					profile.add(line.substring(0, tab[0]), count - hit - failHit, hit, failHit, (long)(mean * hit));
+				}
+				catch(NumberFormatException e) {
+					throw new IOException("broken memo profile: " + line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return profile;
+	}
+
+	/* labels may be shared by many memo points (e.g., the same @Expr) */
+	private void add(String label, long miss, long hit, long failHit, long hitLength) {
+		long[] s = this.stats.get(label);
+		if(s == null) {
+			s = new long[4];
+			this.stats.put(label, s);
+		}
+		s[0] += miss;
+		s[1] += hit;
+		s[2] += failHit;
+		s[3] += hitLength;
+	}
+
+	public final void add(UList<MemoPoint> list) {
+		for(MemoPoint p : list) {
+			synchronized(p) {
+				this.add(p.label, p.memoMiss, p.memoHit, p.memoFailHit, p.hitLength);
+			}
+		}
+	}
+
+	public final void save(String path) {
+		FileBuilder fb = new FileBuilder(path);
+		fb.write("# label\tcount\thit\tfail\tmean\n");
+		for(String label : this.stats.keySet()) {
+			long[] s = this.stats.get(label);
+			double mean = (s[1] == 0) ? 0.0 : (double)s[3] / s[1];
+			fb.write(label + "\t" + (s[0] + s[1] + s[2]) + "\t" + s[1] + "\t" + s[2] + "\t" + mean + "\n");
+		}
+		fb.flush();
+	}
+
+	public final int size() {
+		return this.stats.size();
+	}
+
+	/* unprofiled labels are regarded as profitable */
+	public final boolean isProfitable(String label) {
+		long[] s = this.stats.get(label);
+		if(s == null || s[0] == 0) {
+			return true;
+		}
+		return (double)(s[1] + s[2]) / s[0] >= UsedRatio;
+	}
+}
@@ -0,0 +1,62 @@
+package nez.runtime;
+
+/*
+ * MemoState
+ * The per-parse statistics of a monitored memo point. Context counts the
+ * stores and hits of the current window, and MemoPolicy judges them at
+ * the end of the window. A deactivated point is given a trial window
+ * after backoff calls (0: never).
+ */
+
+public final class MemoState {
+	public final int id;           // MemoPoint.id
+
+	/* the current window */
+	public int  stored = 0;
+	public int  used = 0;
+	public int  failUsed = 0;
+	public long saved = 0;         // the bytes skipped by hits
+
+	/* the whole parse */
+	public long totalStored = 0;
+	public long totalUsed = 0;
+
+	public double score = 0.0;     // e.g., the decayed benefit of windows
+	public int backoff = 0;
+
+	boolean activated = true;
+	boolean trial = false;
+	int skipped = 0;
+	int deactivated = 0;
+	int reactivated = 0;
+	int trials = 0;
+
+	MemoState(int id) {
+		this.id = id;
+	}
+
+	final void reset() {
+		this.clearWindow();
+		this.totalStored = 0;
+		this.totalUsed = 0;
+		this.score = 0.0;
+		this.backoff = 0;
+		this.activated = true;
+		this.trial = false;
+		this.skipped = 0;
+		this.deactivated = 0;
+		this.reactivated = 0;
+		this.trials = 0;
+	}
+
+	final void clearWindow() {
+		this.stored = 0;
+		this.used = 0;
+		this.failUsed = 0;
+		this.saved = 0;
+	}
+
+	public final boolean isActivated() {
+		return this.activated;
+	}
+}
@@ -1,12 +1,17 @@
 package nez.runtime;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 
+import nez.ast.AST;
 import nez.ast.Node;
 import nez.main.Recorder;
+import nez.util.ConsoleUtils;
 
 public abstract class MemoTable {
 	public abstract MemoTable newMemoTable(long len, int w, int n);
+	abstract boolean reset(long len, int w, int n);
 	abstract void setMemo(long pos, int memoPoint, boolean failed, Node result, int consumed, int stateValue);
 	abstract MemoEntry getMemo(long pos, int memoPoint);
 	abstract MemoEntry getMemo2(long pos, int memoPoint, int stateValue);
@@ -15,6 +20,29 @@ public abstract class MemoTable {
 	int CountUsed;
 	int CountInvalidated;
 
+	private Object owner = null;  // the production that has filled this table
+
+	public final boolean isOwnedBy(Object owner) {
+		return this.owner == owner;
+	}
+
+	public final void setOwner(Object owner) {
+		this.owner = owner;
+	}
+
+	/* reuses the table of the previous parse if it has the same shape */
+	public final MemoTable newMemoTable(MemoTable prev, long len, int w, int n) {
+		if(prev != null && prev.getClass() == this.getClass() && prev.reset(len, w, n)) {
+			return prev;
+		}
+		return this.newMemoTable(len, w, n);
+	}
+
+	/* adjusts the table to an edit of the input; false if it must be discarded */
+	public boolean edit(long offset, long removed, long inserted) {
+		return false;
+	}
+
 	void initStat() {
 		this.CountStored = 0;
 		this.CountUsed = 0;
@@ -32,6 +60,28 @@ public abstract class MemoTable {
 	public static MemoTable newPackratHashTable(int len, int w, int n) {
 		return new PackratHashTable(len, w, n);
 	}
+
+	public static MemoTable newOpenHashTable(long len, int w, int n) {
+		return new OpenHashTable(len, w, n);
+	}
+
+	public static MemoTable newOffHeapTable(long len, int w, int n, long maxBytes) {
+		return new OffHeapTable(len, w, n, maxBytes);
+	}
+
+	public static MemoTable newSlidingWindowTable(long len, int w, int n) {
+		return new SlidingWindowTable(len, w, n);
+	}
+
+	/* failures only; over the full input (window = false) or w positions */
+	public static MemoTable newFailureTable(long len, int w, int n, boolean window) {
+		return new FailureTable(len, w, n, window);
+	}
+
+	public static MemoTable newIncrementalTable(Context sc, long len) {
+		return new IncrementalTable(sc, len);
+	}
+
 	public void record(Recorder rec) {
 		rec.setText("M.TableType", this.getClass().getSimpleName());
 		rec.setCount("M.MemoStored", this.CountStored);
@@ -45,12 +95,17 @@ class NullTable extends MemoTable {
 	@Override
 	public
 	MemoTable newMemoTable(long len, int w, int n) {
-		return this;
+		return new NullTable(len, w, n);
 	}
 	NullTable(long len, int w, int n) {
 		this.initStat();
 	}
 	@Override
+	boolean reset(long len, int w, int n) {
+		this.initStat();
+		return true;
+	}
+	@Override
 	void setMemo(long pos, int memoPoint, boolean failed, Node result,
 			int consumed, int stateValue) {
 		this.CountStored += 1;
@@ -84,6 +139,19 @@ class ElasticTable extends MemoTable {
 	MemoTable newMemoTable(long len, int w, int n) {
 		return new ElasticTable(len, w, n);
 	}
+
+	@Override
+	boolean reset(long len, int w, int n) {
+		if(this.memoArray.length != w * n + 1 || this.shift != (int)(Math.log(n) / Math.log(2.0)) + 1) {
+			return false;
+		}
+		for(int i = 0; i < this.memoArray.length; i++) {
+			this.memoArray[i].key = -1;
+			this.memoArray[i].result = null;
+		}
+		this.initStat();
+		return true;
+	}
 	
 	final long longkey(long pos, int memoPoint, int shift) {
 		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
@@ -131,6 +199,221 @@ class ElasticTable extends MemoTable {
 
 }
 
+class SlidingWindowTable extends MemoTable {
+	/* w positions behind the head x n memo points, in parallel arrays */
+	private final int w;
+	private final int n;
+	private final long[] keys;
+	private final int[] consumed;
+	private final int[] stateValues;
+	private final boolean[] failed;
+	private final Node[] results;
+	private final MemoEntry entry = new MemoEntry();
+
+	SlidingWindowTable(long len, int w, int n) {
+		this.w = (w > 0) ? w : 1;
+		this.n = (n > 0) ? n : 1;
+		int size = this.w * this.n;
+		this.keys = new long[size];
+		this.consumed = new int[size];
+		this.stateValues = new int[size];
+		this.failed = new boolean[size];
+		this.results = new Node[size];
+		Arrays.fill(this.keys, -1);
+		this.initStat();
+	}
+
+	@Override
+	public
+	MemoTable newMemoTable(long len, int w, int n) {
+		return new SlidingWindowTable(len, w, n);
+	}
+
+	@Override
+	boolean reset(long len, int w, int n) {
+		if(this.w != ((w > 0) ? w : 1) || this.n != ((n > 0) ? n : 1)) {
+			return false;
+		}
+		Arrays.fill(this.keys, -1);
+		Arrays.fill(this.results, null);
+		this.initStat();
+		return true;
+	}
+
+	private final int index(long pos, int memoPoint) {
+		return (int)(pos % this.w) * this.n + memoPoint;
+	}
+
+	private final MemoEntry entry(int index) {
+		MemoEntry m = this.entry;
+		m.failed = this.failed[index];
+		m.consumed = this.consumed[index];
+		m.result = this.results[index];
+		m.stateValue = this.stateValues[index];
+		return m;
+	}
+
+	@Override
+	void setMemo(long pos, int memoPoint, boolean failed, Node result, int consumed, int stateValue) {
+		int index = index(pos, memoPoint);
+		this.keys[index] = pos;
+		this.failed[index] = failed;
+		this.results[index] = result;
+		this.consumed[index] = consumed;
+		this.stateValues[index] = stateValue;
+		this.CountStored += 1;
+	}
+
+	@Override
+	MemoEntry getMemo(long pos, int memoPoint) {
+		int index = index(pos, memoPoint);
+		if(this.keys[index] == pos) {
+			this.CountUsed += 1;
+			return entry(index);
+		}
+		return null;
+	}
+
+	@Override
+	MemoEntry getMemo2(long pos, int memoPoint, int stateValue) {
+		int index = index(pos, memoPoint);
+		if(this.keys[index] == pos) {
+			if(this.stateValues[index] == stateValue) {
+				this.CountUsed += 1;
+				return entry(index);
+			}
+			this.CountInvalidated += 1;
+		}
+		return null;
+	}
+}
+
+/*
+ * FailureTable
+ * Records only failures, one bit per (position, memo point). Successes
+ * are not stored, so a lookup hits only a failure. Without a window, the
+ * bits of the full input are kept position by position (grown on demand);
+ * with a window, w slots are reused with the position they hold.
+ * Failures of context-sensitive points are not reused (getMemo2), since
+ * they depend on the state value.
+ */
+
+class FailureTable extends MemoTable {
+	private final static long MaxWords = Integer.MAX_VALUE - 8;  // the array limit (full input)
+	private final boolean window;
+	private final int w;
+	private final int n;
+	private final int words;    // per slot (window)
+	private long[] bits;
+	private long[] slotPos;     // window
+	private int usedWords;      // full input
+	private boolean capped = false;
+	private final MemoEntry entry = new MemoEntry();
+
+	FailureTable(long len, int w, int n, boolean window) {
+		this.window = window;
+		this.w = (w > 0) ? w : 1;
+		this.n = (n > 0) ? n : 1;
+		this.words = (this.n + 63) / 64;
+		if(window) {
+			this.bits = new long[this.w * this.words];
+			this.slotPos = new long[this.w];
+			Arrays.fill(this.slotPos, -1);
+		}
+		else {
+			this.bits = new long[1024];
+		}
+		this.entry.failed = true;
+		this.initStat();
+	}
+
+	@Override
+	public
+	MemoTable newMemoTable(long len, int w, int n) {
+		return new FailureTable(len, w, n, this.window);
+	}
+
+	@Override
+	boolean reset(long len, int w, int n) {
+		if(this.n != ((n > 0) ? n : 1) || (this.window && this.w != ((w > 0) ? w : 1))) {
+			return false;
+		}
+		if(this.window) {
+			Arrays.fill(this.slotPos, -1);
+		}
+		else {
+			Arrays.fill(this.bits, 0, this.usedWords, 0L);
+			this.usedWords = 0;
+		}
+		this.initStat();
+		return true;
+	}
+
+	@Override
+	void setMemo(long pos, int memoPoint, boolean failed, Node result, int consumed, int stateValue) {
+		if(!failed) {
+			return;
+		}
+		if(this.window) {
+			int slot = (int)(pos % this.w);
+			int base = slot * this.words;
+			if(this.slotPos[slot] != pos) {
+				this.slotPos[slot] = pos;
+				Arrays.fill(this.bits, base, base + this.words, 0L);
+			}
+			this.bits[base + (memoPoint >>> 6)] |= 1L << memoPoint;
+		}
+		else {
+			long index = pos * this.n + memoPoint;
+			if(index < 0 || (index >>> 6) >= MaxWords) {
+				if(!this.capped) {
+					this.capped = true;
+					ConsoleUtils.notice("--memo:fail: too large input; failures after position " + pos + " are not memoized (use --memo:fail:<num>)");
+				}
+				return;
+			}
+			int word = (int)(index >>> 6);
+			if(word >= this.bits.length) {
+				this.bits = Arrays.copyOf(this.bits, (int)Math.min(MaxWords, Math.max(word + 1, this.bits.length * 2L)));
+			}
+			if(word >= this.usedWords) {
+				this.usedWords = word + 1;
+			}
+			this.bits[word] |= 1L << index;
+		}
+		this.CountStored += 1;
+	}
+
+	@Override
+	MemoEntry getMemo(long pos, int memoPoint) {
+		boolean failed;
+		if(this.window) {
+			int slot = (int)(pos % this.w);
+			failed = this.slotPos[slot] == pos && (this.bits[slot * this.words + (memoPoint >>> 6)] & (1L << memoPoint)) != 0;
+		}
+		else {
+			long index = pos * this.n + memoPoint;
+			failed = index >= 0 && (index >>> 6) < this.usedWords && (this.bits[(int)(index >>> 6)] & (1L << index)) != 0;
+		}
+		if(failed) {
+			this.CountUsed += 1;
+			return this.entry;
+		}
+		return null;
+	}
+
+	@Override
+	MemoEntry getMemo2(long pos, int memoPoint, int stateValue) {
+		return null;
+	}
+
+	@Override
+	public void record(Recorder rec) {
+		super.record(rec);
+		rec.setCount("M.FailureBytes", (long)this.bits.length * 8);
+	}
+}
+
 class PackratHashTable extends MemoTable {
 	HashMap<Long, MemoEntryList> memoMap;
 	private MemoEntryList UnusedMemo = null;
@@ -144,6 +427,16 @@ class PackratHashTable extends MemoTable {
 	MemoTable newMemoTable(long len, int w, int n) {
 		return new PackratHashTable(len, w, n);
 	}
+
+	@Override
+	boolean reset(long len, int w, int n) {
+		for(MemoEntryList m : this.memoMap.values()) {
+			this.unusedMemo(m);
+		}
+		this.memoMap.clear();
+		this.initStat();
+		return true;
+	}
 	
 	private final MemoEntryList newMemo() {
 		if(UnusedMemo != null) {
@@ -212,4 +505,555 @@ class PackratHashTable extends MemoTable {
 
 }
 
+class OpenHashTable extends MemoTable {
+	/* open addressing with linear probing; entries in parallel arrays */
+	private final int shift;
+	private long[] keys;
+	private int[] consumed;
+	private int[] stateValues;
+	private int[] failedBits;
+	private Node[] results;
+	private int size;
+	private final MemoEntry entry = new MemoEntry();
+
+	OpenHashTable(long len, int w, int n) {
+		this.shift = (n > 0) ? (int)(Math.log(n) / Math.log(2.0)) + 1 : 1;
+		int capacity = 64;
+		while(capacity < w * n * 2) {
+			capacity *= 2;
+		}
+		this.init(capacity);
+		this.initStat();
+	}
+
+	private void init(int capacity) {
+		this.keys = new long[capacity];
+		this.consumed = new int[capacity];
+		this.stateValues = new int[capacity];
+		this.failedBits = new int[capacity / 32 + 1];
+		this.results = new Node[capacity];
+		Arrays.fill(this.keys, -1);
+		this.size = 0;
+	}
+
+	@Override
+	public
+	MemoTable newMemoTable(long len, int w, int n) {
+		return new OpenHashTable(len, w, n);
+	}
+
+	@Override
+	boolean reset(long len, int w, int n) {
+		if(this.shift != ((n > 0) ? (int)(Math.log(n) / Math.log(2.0)) + 1 : 1)) {
+			return false;
+		}
+		Arrays.fill(this.keys, -1);
+		Arrays.fill(this.failedBits, 0);
+		Arrays.fill(this.results, null);
+		this.size = 0;
+		this.initStat();
+		return true;
+	}
+
+	private final long longkey(long pos, int memoPoint) {
+		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
+	}
+
+	private final int slot(long key) {
+		int mask = this.keys.length - 1;
+		int i = (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while(true) {
+			long k = this.keys[i];
+			if(k == key || k == -1) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private final boolean isFailed(int index) {
+		return (this.failedBits[index >> 5] & (1 << index)) != 0;
+	}
+
+	private final void setFailed(int index, boolean failed) {
+		if(failed) {
+			this.failedBits[index >> 5] |= (1 << index);
+		}
+		else {
+			this.failedBits[index >> 5] &= ~(1 << index);
+		}
+	}
+
+	private final MemoEntry entry(int index) {
+		MemoEntry m = this.entry;
+		m.failed = isFailed(index);
+		m.consumed = this.consumed[index];
+		m.result = this.results[index];
+		m.stateValue = this.stateValues[index];
+		return m;
+	}
+
+	private void grow() {
+		long[] keys = this.keys;
+		int[] consumed = this.consumed;
+		int[] stateValues = this.stateValues;
+		int[] failedBits = this.failedBits;
+		Node[] results = this.results;
+		this.init(keys.length * 2);
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != -1) {
+				int index = slot(keys[i]);
+				this.keys[index] = keys[i];
+				this.consumed[index] = consumed[i];
+				this.stateValues[index] = stateValues[i];
+				this.results[index] = results[i];
+				this.setFailed(index, (failedBits[i >> 5] & (1 << i)) != 0);
+				this.size++;
+			}
+		}
+	}
+
+	@Override
+	void setMemo(long pos, int memoPoint, boolean failed, Node result, int consumed, int stateValue) {
+		long key = longkey(pos, memoPoint);
+		int index = slot(key);
+		if(this.keys[index] == -1) {
+			if((this.size + 1) * 4 > this.keys.length * 3) {  // load factor 0.75
+				this.grow();
+				index = slot(key);
+			}
+			this.keys[index] = key;
+			this.size++;
+		}
+		this.setFailed(index, failed);
+		this.results[index] = result;
+		this.consumed[index] = consumed;
+		this.stateValues[index] = stateValue;
+		this.CountStored += 1;
+	}
+
+	@Override
+	MemoEntry getMemo(long pos, int memoPoint) {
+		int index = slot(longkey(pos, memoPoint));
+		if(this.keys[index] != -1) {
+			this.CountUsed += 1;
+			return entry(index);
+		}
+		return null;
+	}
+
+	@Override
+	MemoEntry getMemo2(long pos, int memoPoint, int stateValue) {
+		int index = slot(longkey(pos, memoPoint));
+		if(this.keys[index] != -1) {
+			if(this.stateValues[index] == stateValue) {
+				this.CountUsed += 1;
+				return entry(index);
+			}
+			this.CountInvalidated += 1;
+		}
+		return null;
+	}
+}
+
+class OffHeapTable extends MemoTable {
+	/* 
+	 * entries without nodes are kept in direct buffers as 16-byte records
+	 * (key+1, consumed|failed, stateValue), up to maxBytes. 
+	 * entries that carry a node (IMemoizeNode) are kept on the heap.
+	 * the table is sized for len * n entries, up to maxBytes.
+	 */
+	private final static int EntrySize = 16;
+	private final static int SegmentBits = 26;  // 1 GiB per buffer
+	private final static int MaxProbe = 8;
+	private final static long MinCapacity = 1024;
+	private final static long UnknownLength = 1 << 20;  // a stream is sized as if 1 MB
+	private final long maxBytes;
+	private final int shift;
+	private final long mask;
+	private final ByteBuffer[] segments;
+	private final OpenHashTable nodeTable;
+	private final MemoEntry entry = new MemoEntry();
+	private long size;
+	private long CountEvicted;
+
+	OffHeapTable(long len, int w, int n, long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.shift = (n > 0) ? (int)(Math.log(n) / Math.log(2.0)) + 1 : 1;
+		long capacity = capacity(len, n, maxBytes);
+		this.mask = capacity - 1;
+		long segmentSize = Math.min(capacity, 1L << SegmentBits);
+		this.segments = new ByteBuffer[(int)(capacity / segmentSize)];
+		for(int i = 0; i < this.segments.length; i++) {
+			this.segments[i] = ByteBuffer.allocateDirect((int)(segmentSize * EntrySize));
+		}
+		this.nodeTable = new OpenHashTable(0, w, n);
+		this.initStat();
+	}
 
+	@Override
+	public
+	MemoTable newMemoTable(long len, int w, int n) {
+		return new OffHeapTable(len, w, n, this.maxBytes);
+	}
+
+	private static long capacity(long len, int n, long maxBytes) {
+		if(len == Long.MAX_VALUE) {
+			len = UnknownLength;
+		}
+		n = Math.max(n, 1);
+		long entries = (len > Long.MAX_VALUE / n) ? Long.MAX_VALUE : len * n;
+		long capacity = MinCapacity;
+		while(capacity < entries && (capacity * 2) * EntrySize <= maxBytes) {
+			capacity *= 2;
+		}
+		return capacity;
+	}
+
+	@Override
+	boolean reset(long len, int w, int n) {
+		if(this.shift != ((n > 0) ? (int)(Math.log(n) / Math.log(2.0)) + 1 : 1)) {
+			return false;
+		}
+		long capacity = capacity(len, n, this.maxBytes);
+		if(capacity > this.mask + 1 || capacity * 8 <= this.mask + 1) {
+			return false;  // too small, or far too large to clear for the input
+		}
+		if(this.size > 0) {
+			for(long i = 0; i <= this.mask; i++) {
+				this.segment(i).putLong(offset(i), 0);
+			}
+		}
+		this.nodeTable.reset(len, w, n);
+		this.size = 0;
+		this.CountEvicted = 0;
+		this.initStat();
+		return true;
+	}
+
+	private final ByteBuffer segment(long index) {
+		return this.segments[(int)(index >>> SegmentBits)];
+	}
+
+	private final static int offset(long index) {
+		return (int)(index & ((1L << SegmentBits) - 1)) * EntrySize;
+	}
+
+	private final long longkey(long pos, int memoPoint) {
+		return ((pos << shift) | memoPoint) & (Long.MAX_VALUE >> 1);
+	}
+
+	private final long probe(long key) {
+		long h = ((key * 0x9E3779B97F4A7C15L) >>> 16) & this.mask;
+		long i = h;
+		for(int p = 0; p < MaxProbe; p++) {
+			long k = segment(i).getLong(offset(i));
+			if(k == key + 1 || k == 0) {
+				return i;
+			}
+			i = (i + 1) & this.mask;
+		}
+		return h;  // evicts the first entry
+	}
+
+	private final MemoEntry entry(ByteBuffer b, int offset) {
+		MemoEntry m = this.entry;
+		int consumed = b.getInt(offset + 8);
+		m.failed = consumed < 0;
+		m.consumed = consumed & Integer.MAX_VALUE;
+		m.result = null;
+		m.stateValue = b.getInt(offset + 12);
+		return m;
+	}
+
+	@Override
+	void setMemo(long pos, int memoPoint, boolean failed, Node result, int consumed, int stateValue) {
+		this.CountStored += 1;
+		if(result != null) {
+			this.nodeTable.setMemo(pos, memoPoint, failed, result, consumed, stateValue);
+			return;
+		}
+		long key = longkey(pos, memoPoint);
+		long index = probe(key);
+		ByteBuffer b = segment(index);
+		int offset = offset(index);
+		long k = b.getLong(offset);
+		if(k == 0) {
+			this.size++;
+		}
+		else if(k != key + 1) {
+			this.CountEvicted++;
+		}
+		b.putLong(offset, key + 1);
+		b.putInt(offset + 8, failed ? (consumed | Integer.MIN_VALUE) : consumed);
+		b.putInt(offset + 12, stateValue);
+	}
+
+	@Override
+	MemoEntry getMemo(long pos, int memoPoint) {
+		long key = longkey(pos, memoPoint);
+		long index = probe(key);
+		ByteBuffer b = segment(index);
+		int offset = offset(index);
+		if(b.getLong(offset) == key + 1) {
+			this.CountUsed += 1;
+			return entry(b, offset);
+		}
+		MemoEntry m = this.nodeTable.getMemo(pos, memoPoint);
+		if(m != null) {
+			this.CountUsed += 1;
+		}
+		return m;
+	}
+
+	@Override
+	MemoEntry getMemo2(long pos, int memoPoint, int stateValue) {
+		long key = longkey(pos, memoPoint);
+		long index = probe(key);
+		ByteBuffer b = segment(index);
+		int offset = offset(index);
+		if(b.getLong(offset) == key + 1) {
+			if(b.getInt(offset + 12) == stateValue) {
+				this.CountUsed += 1;
+				return entry(b, offset);
+			}
+			this.CountInvalidated += 1;
+		}
+		MemoEntry m = this.nodeTable.getMemo2(pos, memoPoint, stateValue);
+		if(m != null) {
+			this.CountUsed += 1;
+		}
+		return m;
+	}
+
+	@Override
+	public void record(Recorder rec) {
+		super.record(rec);
+		rec.setCount("M.OffHeapBytes", (this.mask + 1) * EntrySize);
+		rec.setCount("M.OffHeapEntries", this.size);
+		rec.setCount("M.HeapEntries", this.nodeTable.CountStored);
+		rec.setCount("M.Evicted", this.CountEvicted);
+	}
+}
+
+/*
+ * IncrementalTable
+ * A packrat table that survives edits of the input. Entries are chained
+ * per position in a gap buffer, so the entries after an edit are shifted
+ * by moving the gap. Each entry records how far its rule has examined the
+ * input; an edit invalidates only the entries that have examined the edited
+ * bytes. Entries reaching further than LongSpan are also kept in the span
+ * list so that an edit scans only LongSpan positions behind it.
+ */
+
+class IncrementalTable extends MemoTable {
+	final static int LongSpan = 256;
+	final static int Lookahead = 64;  // bytes a failed literal may inspect beyond the head
+	private final Context sc;
+	private MemoEntryRange[] slots;
+	private int gapStart;
+	private int gapEnd;
+	private MemoEntryRange[] spans = new MemoEntryRange[64];
+	private int spanSize = 0;
+	private int generation = 0;
+
+	IncrementalTable(Context sc, long len) {
+		this.sc = sc;
+		this.slots = new MemoEntryRange[(int)len + 1 + LongSpan];
+		this.gapStart = (int)len + 1;
+		this.gapEnd = this.slots.length;
+		this.initStat();
+	}
+
+	@Override
+	public MemoTable newMemoTable(long len, int w, int n) {
+		return new IncrementalTable(this.sc, len);
+	}
+
+	@Override
+	boolean reset(long len, int w, int n) {
+		if(this.slots.length < len + 1) {
+			return false;
+		}
+		Arrays.fill(this.slots, null);
+		this.gapStart = (int)len + 1;
+		this.gapEnd = this.slots.length;
+		Arrays.fill(this.spans, null);
+		this.spanSize = 0;
+		this.initStat();
+		return true;
+	}
+
+	private int index(long pos) {
+		return (int)(pos < this.gapStart ? pos : pos + (this.gapEnd - this.gapStart));
+	}
+
+	@Override
+	void setMemo(long pos, int memoPoint, boolean failed, Node result, int consumed, int stateValue) {
+		int i = index(pos);
+		MemoEntryRange m = this.slots[i];
+		while(m != null && m.memoPoint != memoPoint) {
+			m = m.next;
+		}
+		if(m == null) {
+			m = new MemoEntryRange();
+			m.memoPoint = memoPoint;
+			m.next = this.slots[i];
+			this.slots[i] = m;
+		}
+		m.failed = failed;
+		m.result = result;
+		m.consumed = consumed;
+		m.stateValue = stateValue;
+		m.generation = this.generation;
+		m.reach = (int)(Math.max(sc.head_pos, sc.pos) - pos);
+		m.nodeOffset = (result instanceof AST) ? (int)(((AST)result).getSourcePosition() - pos) : 0;
+		if(m.reach >= LongSpan && m.pos == -1) {
+			if(this.spanSize == this.spans.length) {
+				this.spans = Arrays.copyOf(this.spans, this.spanSize * 2);
+			}
+			m.pos = pos;
+			this.spans[this.spanSize++] = m;
+		}
+		this.CountStored += 1;
+	}
+
+	@Override
+	MemoEntry getMemo(long pos, int memoPoint) {
+		for(MemoEntryRange m = this.slots[index(pos)]; m != null; m = m.next) {
+			if(m.memoPoint == memoPoint) {
+				return this.use(m, pos);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	MemoEntry getMemo2(long pos, int memoPoint, int stateValue) {
+		for(MemoEntryRange m = this.slots[index(pos)]; m != null; m = m.next) {
+			if(m.memoPoint == memoPoint) {
+				return (m.stateValue == stateValue) ? this.use(m, pos) : null;
+			}
+		}
+		return null;
+	}
+
+	private MemoEntry use(MemoEntryRange m, long pos) {
+		if(m.result != null) {
+			if(m.result instanceof AST) {
+				AST node = (AST)m.result;
+				long delta = pos + m.nodeOffset - node.getSourcePosition();
+				if(delta != 0) {
+					node.relocate(delta);  // shifted by an edit
+				}
+			}
+			else if(m.generation != this.generation) {
+				return null;  // not relocatable
+			}
+		}
+		if(sc.head_pos < pos + m.reach) {
+			sc.head_pos = pos + m.reach;  // for the entries enclosing this one
+		}
+		this.CountUsed += 1;
+		return m;
+	}
+
+	@Override
+	public boolean edit(long offset, long removed, long inserted) {
+		this.generation++;
+		int size = 0;
+		for(int i = 0; i < this.spanSize; i++) {
+			MemoEntryRange m = this.spans[i];
+			if(m.pos < offset) {
+				if(m.pos + m.reach + Lookahead >= offset) {
+					this.unlink(m);
+					m.pos = -1;
+					continue;
+				}
+			}
+			else if(m.pos < offset + removed) {
+				m.pos = -1;   // dropped with the removed positions
+				continue;
+			}
+			else {
+				m.pos += inserted - removed;
+			}
+			this.spans[size++] = m;
+		}
+		Arrays.fill(this.spans, size, this.spanSize, null);
+		this.spanSize = size;
+		for(long p = Math.max(0, offset - LongSpan - Lookahead); p < offset; p++) {
+			MemoEntryRange prev = null;
+			int i = index(p);
+			for(MemoEntryRange m = this.slots[i]; m != null; m = m.next) {
+				if(p + m.reach + Lookahead >= offset) {
+					if(prev == null) {
+						this.slots[i] = m.next;
+					}
+					else {
+						prev.next = m.next;
+					}
+					this.CountInvalidated += 1;
+				}
+				else {
+					prev = m;
+				}
+			}
+		}
+		this.moveGap((int)offset);
+		Arrays.fill(this.slots, this.gapEnd, this.gapEnd + (int)removed, null);
+		this.gapEnd += (int)removed;
+		if(this.gapEnd - this.gapStart < inserted) {
+			this.growGap((int)inserted);
+		}
+		this.gapStart += (int)inserted;
+		return true;
+	}
+
+	private void unlink(MemoEntryRange e) {
+		int i = index(e.pos);
+		if(this.slots[i] == e) {
+			this.slots[i] = e.next;
+		}
+		else {
+			for(MemoEntryRange m = this.slots[i]; m != null; m = m.next) {
+				if(m.next == e) {
+					m.next = e.next;
+					break;
+				}
+			}
+		}
+		this.CountInvalidated += 1;
+	}
+
+	private void moveGap(int pos) {
+		int gap = this.gapEnd - this.gapStart;
+		if(pos < this.gapStart) {
+			int n = this.gapStart - pos;
+			System.arraycopy(this.slots, pos, this.slots, this.gapEnd - n, n);
+			Arrays.fill(this.slots, pos, Math.min(this.gapStart, pos + gap), null);
+		}
+		else if(pos > this.gapStart) {
+			int n = pos - this.gapStart;
+			System.arraycopy(this.slots, this.gapEnd, this.slots, this.gapStart, n);
+			Arrays.fill(this.slots, Math.max(this.gapEnd, pos), this.gapEnd + n, null);
+		}
+		this.gapStart = pos;
+		this.gapEnd = pos + gap;
+	}
+
+	private void growGap(int need) {
+		MemoEntryRange[] newslots = new MemoEntryRange[this.slots.length + need + this.slots.length / 2];
+		int tail = this.slots.length - this.gapEnd;
+		System.arraycopy(this.slots, 0, newslots, 0, this.gapStart);
+		System.arraycopy(this.slots, this.gapEnd, newslots, newslots.length - tail, tail);
+		this.slots = newslots;
+		this.gapEnd = newslots.length - tail;
+	}
+
+	@Override
+	public void record(Recorder rec) {
+		super.record(rec);
+		rec.setCount("M.SpanEntries", this.spanSize);
+	}
+}
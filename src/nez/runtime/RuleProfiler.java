@@ -0,0 +1,210 @@
+package nez.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import nez.expr.NonTerminal;
+import nez.expr.Rule;
+import nez.util.FileBuilder;
+
+/*
+ * RuleProfiler
+ * Collects per-rule statistics while Instruction.profile() runs the code:
+ * calls, time, consumed bytes, backtracked bytes and memo lookups. The
+ * statistics are kept in a call tree, so that they can be written both per
+ * rule (CSV) and per call path (collapsed stacks for flamegraph.pl).
+ * A rule is entered at ICallPush, and left at IRet or when a failure
+ * unwinds its frame. Time is measured with System.nanoTime(); parses are
+ * serialized on the profiler.
+ */
+
+public class RuleProfiler {
+	final static class CallNode {
+		final Rule rule;
+		final CallNode parent;
+		private HashMap<Rule, CallNode> children = null;
+		long calls;
+		long failures;
+		long totalTime;    // inclusive
+		long selfTime;
+		long consumed;
+		long backtracked;
+		long memoHit;
+		long memoFailHit;
+		long memoMiss;
+
+		CallNode(Rule rule, CallNode parent) {
+			this.rule = rule;
+			this.parent = parent;
+		}
+
+		final CallNode child(Rule rule) {
+			if(this.children == null) {
+				this.children = new HashMap<Rule, CallNode>();
+			}
+			CallNode n = this.children.get(rule);
+			if(n == null) {
+				n = new CallNode(rule, this);
+				this.children.put(rule, n);
+			}
+			return n;
+		}
+	}
+
+	private final CallNode root = new CallNode(null, null);
+
+	/* the frames of the current parse */
+	private CallNode[] nodes = new CallNode[256];
+	private int[] stackTops = new int[256];
+	private long[] startTimes = new long[256];
+	private long[] childTimes = new long[256];
+	private long[] startPos = new long[256];
+	private int depth = 0;
+
+	final void start() {
+		this.depth = 0;
+		this.childTimes[0] = 0;
+	}
+
+	final void enter(Rule rule, int stackTop, long pos) {
+		CallNode parent = (this.depth == 0) ? this.root : this.nodes[this.depth - 1];
+		if(this.depth + 1 == this.nodes.length) {
+			int size = this.nodes.length * 2;
+			this.nodes = Arrays.copyOf(this.nodes, size);
+			this.stackTops = Arrays.copyOf(this.stackTops, size);
+			this.startTimes = Arrays.copyOf(this.startTimes, size);
+			this.childTimes = Arrays.copyOf(this.childTimes, size);
+			this.startPos = Arrays.copyOf(this.startPos, size);
+		}
+		CallNode n = parent.child(rule);
+		n.calls++;
+		this.nodes[this.depth] = n;
+		this.stackTops[this.depth] = stackTop;
+		this.startPos[this.depth] = pos;
+		this.childTimes[this.depth] = 0;
+		this.startTimes[this.depth] = System.nanoTime();
+		this.depth++;
+	}
+
+	/* leaves the frames above stackTop; failed if unwound by a failure */
+	final void leave(int stackTop, long pos, boolean failed) {
+		while(this.depth > 0 && this.stackTops[this.depth - 1] > stackTop) {
+			this.depth--;
+			long time = System.nanoTime() - this.startTimes[this.depth];
+			CallNode n = this.nodes[this.depth];
+			n.totalTime += time;
+			n.selfTime += time - this.childTimes[this.depth];
+			long length = pos - this.startPos[this.depth];
+			if(failed) {
+				n.failures++;
+				if(length > 0) {
+					n.backtracked += length;
+				}
+			}
+			else {
+				n.consumed += length;
+			}
+			if(this.depth > 0) {
+				this.childTimes[this.depth - 1] += time;
+			}
+		}
+	}
+
+	/* r: the instruction returned by the lookup */
+	final void lookup(ILookup op, Instruction r) {
+		CallNode n = (this.depth == 0) ? this.root : this.nodes[this.depth - 1];
+		if(op.e instanceof NonTerminal) {
+			n = n.child(((NonTerminal)op.e).getRule());
+		}
+		if(r == op.skip) {
+			n.memoHit++;
+		}
+		else if(r == op.next) {
+			n.memoMiss++;
+		}
+		else {
+			n.memoFailHit++;
+		}
+	}
+
+	/* per rule; the inclusive time of recursive calls is counted once */
+	public final void writeCSV(String path) {
+		IdentityHashMap<Rule, long[]> stats = new IdentityHashMap<Rule, long[]>();
+		ArrayList<Rule> rules = new ArrayList<Rule>();
+		this.aggregate(this.root, stats, rules, new IdentityHashMap<Rule, Rule>());
+		FileBuilder fb = new FileBuilder(path);
+		fb.write("rule,calls,failures,total_ns,self_ns,consumed,backtracked,memo_hit,memo_fail_hit,memo_miss\n");
+		for(Rule r : rules) {
+			long[] s = stats.get(r);
+			fb.write(r.getUniqueName());
+			for(long v : s) {
+				fb.write("," + v);
+			}
+			fb.write("\n");
+		}
+		fb.flush();
+	}
+
+	private void aggregate(CallNode n, IdentityHashMap<Rule, long[]> stats, ArrayList<Rule> rules, IdentityHashMap<Rule, Rule> active) {
+		boolean recursive = false;
+		if(n.rule != null) {
+			long[] s = stats.get(n.rule);
+			if(s == null) {
+				s = new long[9];
+				stats.put(n.rule, s);
+				rules.add(n.rule);
+			}
+			recursive = active.containsKey(n.rule);
+			s[0] += n.calls;
+			s[1] += n.failures;
+			s[2] += recursive ? 0 : n.totalTime;
+			s[3] += n.selfTime;
+			s[4] += n.consumed;
+			s[5] += n.backtracked;
+			s[6] += n.memoHit;
+			s[7] += n.memoFailHit;
+			s[8] += n.memoMiss;
+			active.put(n.rule, n.rule);
+		}
+		if(n.children != null) {
+			for(CallNode c : n.children.values()) {
+				this.aggregate(c, stats, rules, active);
+			}
+		}
+		if(n.rule != null && !recursive) {
+			active.remove(n.rule);
+		}
+	}
+
+	/* collapsed stacks: "File;Expr;Term <self time in microseconds>" */
+	public final void writeFlameGraph(String path) {
+		FileBuilder fb = new FileBuilder(path);
+		StringBuilder sb = new StringBuilder();
+		if(this.root.children != null) {
+			for(CallNode c : this.root.children.values()) {
+				this.writeStack(fb, c, sb);
+			}
+		}
+		fb.flush();
+	}
+
+	private void writeStack(FileBuilder fb, CallNode n, StringBuilder sb) {
+		int len = sb.length();
+		if(len > 0) {
+			sb.append(';');
+		}
+		sb.append(n.rule.getLocalName());
+		long micros = n.selfTime / 1000;
+		if(micros > 0) {
+			fb.write(sb.toString() + " " + micros + "\n");
+		}
+		if(n.children != null) {
+			for(CallNode c : n.children.values()) {
+				this.writeStack(fb, c, sb);
+			}
+		}
+		sb.setLength(len);
+	}
+}
@@ -1,5 +1,6 @@
 package nez.runtime;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -48,6 +49,9 @@ public class RuntimeCompiler {
 	public UList<Instruction> codeList;
 	UMap<CodeBlock> ruleMap;
 	HashMap<Integer, MemoPoint> memoMap;
+	Speculation speculation = null;
+	UList<ISpeculate> speculateList = null;
+	MemoProfile memoProfile = null;
 	
 	public RuntimeCompiler(int option) {
 		this.option = option;
@@ -67,7 +71,11 @@ public class RuntimeCompiler {
 		return FlagUtils.is(this.option, Production.ASTConstruction);
 	}
 
+	/* null if the profile shows that memoization does not pay off */
 	MemoPoint issueMemoPoint(String label, Expression e) {
+		if(this.memoProfile != null && !this.memoProfile.isProfitable(label)) {
+			return null;
+		}
 		if(this.enablePackratParsing()) {
 			Integer key = e.getId();
 			assert(e.getId() != 0);
@@ -105,6 +113,25 @@ public class RuntimeCompiler {
 		return this.codeList.size();
 	}
 	
+	/* instruction id -> instruction */
+	public final Instruction[] getCodeTable() {
+		return Arrays.copyOf(this.codeList.ArrayValues, this.codeList.size());
+	}
+
+	/* instruction id -> the rule whose code block contains it */
+	public final Rule[] getRuleTable(UList<Rule> ruleList) {
+		Rule[] table = new Rule[this.codeList.size()];
+		for(Rule r : ruleList) {
+			CodeBlock block = this.ruleMap.get(r.getUniqueName());
+			if(block != null) {
+				for(int i = block.start; i < block.end; i++) {
+					table[i] = r;
+				}
+			}
+		}
+		return table;
+	}
+
 	public final int getMemoPointSize() {
 		if(this.enablePackratParsing()) {
 			return this.memoMap.size();
@@ -123,6 +150,14 @@ public class RuntimeCompiler {
 		return null;
 	}
 	
+	public final void setSpeculation(Speculation speculation) {
+		this.speculation = speculation;
+	}
+
+	public final void setMemoProfile(MemoProfile profile) {
+		this.memoProfile = profile;
+	}
+
 	public final Instruction encode(UList<Rule> ruleList) {
 		for(Rule r : ruleList) {
 			String uname = r.getUniqueName();
@@ -130,19 +165,33 @@ public class RuntimeCompiler {
 			if(Verbose.Debug) {
 				Verbose.debug("compiling .. " + r);
 			}
-			block.head = r.getExpression().encode(this, new IRet(r));
+			Expression e = r.getExpression();
+			if(this.speculation != null && e instanceof Choice && this.speculation.isTarget(r)) {
+				block.head = this.encodeSpeculativeChoice((Choice)e, new IRet(r));
+			}
+			else {
+				block.head = e.encode(this, new IRet(r));
+			}
 			block.start = codeList.size();
 			this.ruleMap.put(uname, block);
 			verify(block.head);
 			block.end = codeList.size();
 		}
-		for(Instruction inst : codeList) {
+		this.resolveCalls(0);
+		if(this.speculateList != null) {
+			this.encodeAlternatives(ruleList);
+		}
+		return this.codeList.ArrayValues[0];
+	}
+
+	private void resolveCalls(int start) {
+		for(int i = start; i < this.codeList.size(); i++) {
+			Instruction inst = this.codeList.ArrayValues[i];
 			if(inst instanceof ICallPush) {
 				CodeBlock deref = this.ruleMap.get(((ICallPush) inst).rule.getUniqueName());
 				((ICallPush) inst).setResolvedJump(deref.head);
 			}
 		}
-		return this.codeList.ArrayValues[0];
 	}
 
 	void verify(Instruction inst) {
@@ -161,6 +210,12 @@ public class RuntimeCompiler {
 						verify(match.jumpTable[ch]);
 					}
 				}
+				if(inst instanceof ISpeculateNext) {
+					Instruction[] entries = ((ISpeculateNext)inst).start.entries;
+					for(int i = 1; i < entries.length; i++) {
+						verify(entries[i]);
+					}
+				}
 				//encode(inst.branch2());
 			}
 		}
@@ -324,7 +379,7 @@ public class RuntimeCompiler {
 			jumpTable[ch] = Instruction.labeling(inst);
 		}
 		@Override
-		Instruction exec(Context sc) throws TerminationException {
+		Instruction exec(Context sc) {
 			int ch = sc.byteAt(sc.getPosition());
 			//System.out.println("ch="+(char)ch);
 			return jumpTable[ch];
@@ -533,6 +588,44 @@ public class RuntimeCompiler {
 		return nextChoice;
 	}
 
+	/* the sequential choice, entered at the alternative selected by speculation */
+	private Instruction encodeSpeculativeChoice(Choice p, Instruction next) {
+		Instruction[] entries = new Instruction[p.size()];
+		Instruction nextChoice = p.get(p.size()-1).encode(this, next);
+		entries[p.size()-1] = nextChoice;
+		for(int i = p.size() -2; i > 0; i--) {
+			Expression e = p.get(i);
+			nextChoice = new IFailPush(e, nextChoice, e.encode(this, new IFailPop(e, next)));
+			entries[i] = nextChoice;
+		}
+		Expression e = p.get(0);
+		ISpeculate spec = new ISpeculate(p, this.speculation, entries, null);
+		spec.next = new IFailPush(e, new ISpeculateNext(spec), e.encode(this, new IFailPop(e, new ISpeculateEnd(p, next))));
+		for(int i = 1; i < entries.length; i++) {
+			Instruction.labeling(entries[i]);
+		}
+		if(this.speculateList == null) {
+			this.speculateList = new UList<ISpeculate>(new ISpeculate[4]);
+		}
+		this.speculateList.add(spec);
+		return spec;
+	}
+
+	/* alternatives are matched on forked contexts with neither AST nor memo tables */
+	private void encodeAlternatives(UList<Rule> ruleList) {
+		int option = FlagUtils.unsetFlag(this.option, Production.ASTConstruction | Production.PackratParsing | Production.Tracing);
+		RuntimeCompiler bc = new RuntimeCompiler(option);
+		bc.encode(ruleList);
+		for(ISpeculate spec : this.speculateList) {
+			for(int i = 1; i < spec.alternatives.length; i++) {
+				int start = bc.codeList.size();
+				spec.alternatives[i] = spec.e.get(i).encode(bc, new IExit(true));
+				bc.verify(spec.alternatives[i]);
+				bc.resolveCalls(start);
+			}
+		}
+	}
+
 	public final Instruction encodeNonTerminal(NonTerminal p, Instruction next) {
 		Expression pp = p.optimize(option);
 		if(pp instanceof ByteChar || pp instanceof ByteMap || pp instanceof AnyChar) {
@@ -546,7 +639,7 @@ public class RuntimeCompiler {
 				MemoPoint m = this.issueMemoPoint(r.getUniqueName(), ref);
 				if(m != null) {
 					if(FlagUtils.is(option, Production.Tracing)) {
-						IMonitoredSwitch monitor = new IMonitoredSwitch(p, new ICallPush(p.getRule(), next));
+						IMonitoredSwitch monitor = new IMonitoredSwitch(p, m, new ICallPush(p.getRule(), next));
 						Instruction inside = new ICallPush(r, newMemoize(p, monitor, m, next));
 						monitor.setActivatedNext(newLookup(p, monitor, m, inside, next, newMemoizeFail(p, monitor, m)));
 						return monitor;
@@ -590,7 +683,7 @@ public class RuntimeCompiler {
 				MemoPoint m = this.issueMemoPoint(p.toString(), inner);
 				if(m != null) {
 					if(FlagUtils.is(option, Production.Tracing)) {
-						IMonitoredSwitch monitor = new IMonitoredSwitch(p, p.get(0).encode(this, next));
+						IMonitoredSwitch monitor = new IMonitoredSwitch(p, m, new INodePush(p, p.get(0).encode(this, new INodeStore(p, next))));
 						Instruction inside = p.get(0).encode(this, newMemoizeNode(p, monitor, m, next));
 						monitor.setActivatedNext(newLookupNode(p, monitor, m, inside, next, new IMemoizeFail(p, monitor, m)));
 						return monitor;
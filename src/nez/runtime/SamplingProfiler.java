@@ -0,0 +1,164 @@
+package nez.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import nez.SourceContext;
+import nez.expr.Rule;
+import nez.util.FileBuilder;
+
+/*
+ * SamplingProfiler
+ * Instruction.sample() publishes the id of the instruction it is executing
+ * in Context.sampledId, a plain int store (no fence, no card mark); a daemon
+ * thread wakes up every interval, and reads it racily with the position of
+ * the input. The counts are kept in arrays, and mapped to instructions and
+ * rules (the tables of the production) only in report(). The parse runs on
+ * the interpreter. With parallel parsing, the context attached last is
+ * sampled.
+ */
+
+public class SamplingProfiler implements Runnable {
+	private volatile long[] counts = null;
+	private volatile SourceContext source = null;
+
+	final static int Regions = 20;
+	private final long interval;  // nanoseconds
+	private Thread sampler = null;
+
+	/* the counts by id for each production (codeTable) */
+	private final IdentityHashMap<Instruction[], long[]> countMap = new IdentityHashMap<Instruction[], long[]>();
+	private final IdentityHashMap<Instruction[], Rule[]> ruleMap = new IdentityHashMap<Instruction[], Rule[]>();
+	private final long[] regionCount = new long[Regions];
+	private long samples = 0;
+	private long idleSamples = 0;
+
+	/* interval: microseconds between samples */
+	public SamplingProfiler(int interval) {
+		this.interval = interval * 1000L;
+	}
+
+	/* codeTable, ruleTable: indexed by the instruction id */
+	final synchronized void attach(SourceContext sc, Instruction[] codeTable, Rule[] ruleTable) {
+		long[] c = this.countMap.get(codeTable);
+		if(c == null) {
+			c = new long[codeTable.length];
+			this.countMap.put(codeTable, c);
+			this.ruleMap.put(codeTable, ruleTable);
+		}
+		this.counts = c;
+		this.source = sc;
+		if(this.sampler == null) {
+			this.sampler = new Thread(this, "nez-sampler");
+			this.sampler.setDaemon(true);
+			this.sampler.start();
+		}
+	}
+
+	final synchronized void detach(SourceContext sc) {
+		if(this.source == sc) {
+			this.source = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while(!Thread.currentThread().isInterrupted()) {
+			LockSupport.parkNanos(this.interval);
+			this.sample();
+		}
+	}
+
+	private synchronized void sample() {
+		SourceContext sc = this.source;
+		int id = (sc == null) ? -1 : ((Context)sc).sampledId;
+		long[] c = this.counts;
+		this.samples++;
+		if(id < 0 || c == null || id >= c.length) {
+			this.idleSamples++;
+			return;
+		}
+		c[id]++;
+		long length = sc.length();
+		if(length > 0) {
+			long region = sc.getPosition() * Regions / length;
+			this.regionCount[(int)Math.min(Math.max(region, 0), Regions - 1)]++;
+		}
+	}
+
+	public final synchronized void stop() {
+		if(this.sampler != null) {
+			this.sampler.interrupt();
+			this.sampler = null;
+		}
+	}
+
+	public final synchronized long getSampleCount() {
+		return this.samples - this.idleSamples;
+	}
+
+	/* the hottest rules, instructions (top 30) and regions of the input */
+	public final synchronized void report(String path) {
+		HashMap<Instruction, long[]> instCount = new HashMap<Instruction, long[]>();
+		HashMap<Instruction, String> instRule = new HashMap<Instruction, String>();
+		HashMap<String, long[]> ruleCount = new HashMap<String, long[]>();
+		for(Instruction[] codes : this.countMap.keySet()) {
+			long[] c = this.countMap.get(codes);
+			Rule[] rules = this.ruleMap.get(codes);
+			for(int id = 0; id < c.length; id++) {
+				if(c[id] > 0) {
+					String rule = (rules[id] == null) ? "?" : rules[id].getUniqueName();
+					instCount.put(codes[id], new long[] { c[id] });
+					instRule.put(codes[id], rule);
+					long[] n = ruleCount.get(rule);
+					if(n == null) {
+						ruleCount.put(rule, new long[] { c[id] });
+					}
+					else {
+						n[0] += c[id];
+					}
+				}
+			}
+		}
+		long total = this.samples - this.idleSamples;
+		FileBuilder fb = new FileBuilder(path);
+		fb.write("# samples: " + total + " (interval " + (this.interval / 1000) + "us, idle " + this.idleSamples + ")\n");
+		fb.write("\n# rule\tsamples\t%\n");
+		for(String rule : sortByCount(ruleCount)) {
+			long n = ruleCount.get(rule)[0];
+			fb.write(rule + "\t" + n + "\t" + percent(n, total) + "\n");
+		}
+		fb.write("\n# id\trule\tsamples\t%\tinstruction\n");
+		ArrayList<Instruction> insts = sortByCount(instCount);
+		for(int i = 0; i < insts.size() && i < 30; i++) {
+			Instruction inst = insts.get(i);
+			long n = instCount.get(inst)[0];
+			fb.write(inst.id + "\t" + instRule.get(inst) + "\t" + n + "\t" + percent(n, total) + "\t" + inst + "\n");
+		}
+		fb.write("\n# input\tsamples\t%\n");
+		for(int i = 0; i < Regions; i++) {
+			fb.write((i * 100 / Regions) + "-" + ((i + 1) * 100 / Regions) + "%\t" + this.regionCount[i] + "\t" + percent(this.regionCount[i], total) + "\n");
+		}
+		fb.flush();
+	}
+
+	private static <T> ArrayList<T> sortByCount(final Map<T, long[]> m) {
+		ArrayList<T> l = new ArrayList<T>(m.keySet());
+		Collections.sort(l, new Comparator<T>() {
+			@Override
+			public int compare(T a, T b) {
+				return Long.compare(m.get(b)[0], m.get(a)[0]);
+			}
+		});
+		return l;
+	}
+
+	private static String percent(long n, long total) {
+		return (total == 0) ? "0.0" : String.valueOf(Math.round(n * 1000.0 / total) / 10.0);
+	}
+}
@@ -0,0 +1,147 @@
+package nez.runtime;
+
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import nez.expr.Rule;
+
+/*
+ * Speculation
+ * Speculative parallel evaluation of heavy choices (experimental).
+ * The top-level choice of a designated rule is compiled into ISpeculate,
+ * which starts matching the second and later alternatives on forked contexts
+ * (without AST construction) while the first alternative is tried as usual.
+ * If the first one fails, the parser jumps into the sequential choice at the
+ * first alternative that has succeeded on its fork. Since every earlier
+ * alternative has failed, the ordered choice and the AST are the same as
+ * the sequential backtracking.
+ *
+ * The calling thread runs any alternative that no worker has started yet,
+ * so a busy (or single-threaded) pool never blocks parsing. The extra work
+ * pays off only when the alternatives are expensive and the first one
+ * often fails late.
+ */
+
+public class Speculation {
+	private final Executor pool;
+	private final HashSet<String> rules = new HashSet<String>();
+
+	public Speculation(Executor pool, String... ruleNames) {
+		this.pool = pool;
+		for(String name : ruleNames) {
+			this.rules.add(name);
+		}
+	}
+
+	public final boolean isTarget(Rule r) {
+		return this.rules.contains(r.getLocalName()) || this.rules.contains(r.getUniqueName());
+	}
+
+	/* starts the alternatives except the first one; null if the input cannot be shared */
+	final Round start(Context sc, ISpeculate op) {
+		int n = op.alternatives.length;
+		Context[] forks = new Context[n];
+		for(int i = 1; i < n; i++) {
+			forks[i] = sc.fork();
+			if(forks[i] == null) {
+				return null;
+			}
+		}
+		long pos = sc.getPosition();
+		@SuppressWarnings("unchecked")
+		FutureTask<Boolean>[] tasks = new FutureTask[n];
+		for(int i = 1; i < n; i++) {
+			tasks[i] = new FutureTask<Boolean>(new Alternative(forks[i], pos, op.alternatives[i]));
+			this.pool.execute(tasks[i]);
+		}
+		return new Round(forks, tasks);
+	}
+
+	static class Round {
+		final Context[] forks;
+		final FutureTask<Boolean>[] tasks;
+		Round prev = null;   // the enclosing speculation
+		Round(Context[] forks, FutureTask<Boolean>[] tasks) {
+			this.forks = forks;
+			this.tasks = tasks;
+		}
+
+		/* the first alternative has failed */
+		final Instruction select(Context sc, ISpeculate op) {
+			int n = op.entries.length;
+			if(this.tasks == null) {
+				return op.entries[1];  // not speculated
+			}
+			int selected = n - 1;  // all failed; the last alternative fails again
+			for(int i = 1; i < n; i++) {
+				this.tasks[i].run();  // does nothing if a worker has started it
+				if(get(this.tasks[i])) {
+					selected = i;
+					break;
+				}
+				Context fork = this.forks[i];  // for the error position, as if backtracked
+				sc.head_pos = Math.max(sc.head_pos, Math.max(fork.head_pos, fork.pos));
+			}
+			this.cancel(selected);
+			return op.entries[selected];
+		}
+
+		final void cancel(int selected) {
+			if(this.tasks != null) {
+				for(int i = selected + 1; i < this.tasks.length; i++) {
+					this.tasks[i].cancel(false);
+					this.forks[i].cancel();
+				}
+			}
+		}
+	}
+
+	private static boolean get(FutureTask<Boolean> task) {
+		try {
+			return task.get();
+		}
+		catch(CancellationException e) {
+			return false;
+		}
+		catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private final static MemoTable NullTable = MemoTable.newNullTable(0, 0, 0);
+
+	static class Alternative implements Callable<Boolean> {
+		final Context sc;
+		final long pos;
+		final Instruction code;
+		Alternative(Context sc, long pos, Instruction code) {
+			this.sc = sc;
+			this.pos = pos;
+			this.code = code;
+		}
+		@Override
+		public Boolean call() {
+			this.sc.rollback(this.pos);
+			this.sc.initJumpStack(16, NullTable);
+			Instruction code = this.code;
+			while(code != null) {
+				code = code.exec(this.sc);
+			}
+			return this.sc.getExitStatus();
+		}
+	}
+}
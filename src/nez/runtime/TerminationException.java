@@ -1,10 +0,0 @@
-package nez.runtime;
-
-@SuppressWarnings("serial")
-public class TerminationException extends Exception {
-	boolean status;
-	TerminationException(boolean status) {
-		super();
-		this.status = status;
-	}
-}
@@ -7,6 +7,7 @@ import nez.ast.Node;
 import nez.ast.Source;
 import nez.ast.SourcePosition;
 import nez.ast.Tag;
+import nez.ast.TextPool;
 import nez.main.Recorder;
 import nez.util.FileBuilder;
 import nez.util.StringUtils;
@@ -19,6 +20,7 @@ public class RelationExtracker {
 	RNode[] buffer;
 	Schema[] schemaBuffer;
 	UList<String> workingValueList;
+	TextPool keyPool = new TextPool();  // column names
 	long    index = 0;
 	double thr = 0.75;
 	WordCount keyCount = new WordCount();
@@ -340,7 +342,7 @@ class Schema {
 	void extractImpl(RNode t, UList<String> wlist) {
 		if(t.size() == 2) {
 			if(t.get(0).size() == 0 && t.get(1).size() == 0) {
-				add(t.get(0).getText(), t.get(1).getText(), wlist);
+				add(t.get(0).getKeyText(), t.get(1).getText(), wlist);
 				return;
 			}
 		}
@@ -579,6 +581,14 @@ class RNode extends AbstractList<RNode> implements Node, SourcePosition {
 		return this.length == 0;
 	}
 	
+	/* column names are interned without making a String for each */
+	final String getKeyText() {
+		if(this.value == null && this.source != null) {
+			return this.tracker.keyPool.intern(this.source, this.pos, this.length);
+		}
+		return this.getText();
+	}
+
 	public final String getText() {
 		if(this.value != null) {
 			return this.value.toString();
@@ -0,0 +1,66 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.ast.ASTArena;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+
+import org.junit.Test;
+
+
+public class ASTArenaTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ 'a' #A } / { [0-9]+ #Int } / '(' { (@Expr / ',')* #Tuple } ')'";
+
+	private static Production production() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		return g.getProduction("File", Production.DefaultOption);
+	}
+
+	private static String parse(Production p, String input) {
+		return String.valueOf(p.parse(SourceContext.newStringSourceContext(input), new AST()));
+	}
+
+	@Test
+	public void test() {
+		Production p = production();
+		String[] inputs = { "1,(2,3a),((4)),5a", "(1,2,3,4,5,6,7,8)", "", "12,(3,(4,(5)))" };
+		ASTArena arena = new ASTArena();
+		for(int round = 0; round < 3; round++) {
+			for(String input : inputs) {
+				AST b = p.parse(SourceContext.newStringSourceContext(input), arena.newBaseNode());
+				assertEquals(parse(p, input), String.valueOf(b));
+				assertTrue(arena.size() > 0);
+				arena.reset();
+				assertEquals(0, arena.size());
+			}
+		}
+	}
+
+	/* reset() gives the nodes of the last tree to the next parse */
+	@Test
+	public void testReset() {
+		Production p = production();
+		ASTArena arena = new ASTArena();
+		String input = "1,(2,3a),((4)),5a";
+		AST first = p.parse(SourceContext.newStringSourceContext(input), arena.newBaseNode());
+		AST child = first.get(1);
+		int size = arena.size();
+		arena.reset();
+		AST second = p.parse(SourceContext.newStringSourceContext(input), arena.newBaseNode());
+		assertSame(first, second);
+		assertSame(child, second.get(1));
+		assertEquals(size, arena.size());
+		assertEquals(9, size);  // nodes are created lazily; none are dropped by backtracking
+		arena.reset();
+		AST other = p.parse(SourceContext.newStringSourceContext("(1,2,3,4,5,6,7,8)"), arena.newBaseNode());
+		assertEquals(parse(p, "(1,2,3,4,5,6,7,8)"), String.valueOf(other));
+	}
+
+}
@@ -0,0 +1,54 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.ast.BinaryAST;
+import nez.ast.BinaryASTWriter;
+import nez.ast.BinaryNode;
+import nez.ast.CompactTree;
+import nez.ast.Node;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+
+import org.junit.Test;
+
+
+public class BinaryASTTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' { @Expr ',' @[1]Expr ')' #Pair } / { 'x' #Var }";
+
+	@Test
+	public void test() throws IOException {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 1000; i++) {
+			sb.append("(" + i + ",x),x,");
+		}
+		String input = sb.toString();
+		AST ast = p.parse(SourceContext.newStringSourceContext(input), new AST());
+		File f = File.createTempFile("nez", ".nezb");
+		f.deleteOnExit();
+
+		new BinaryASTWriter(true).transform(f.getPath(), ast);
+		BinaryNode root = new BinaryAST(f.getPath()).getRoot();
+		assertEquals(ast.size(), root.size());
+		assertEquals("x", root.get(1999).getText());
+		assertEquals(ast.get(1000).getSourcePosition(), root.get(1000).getSourcePosition());
+		assertEquals(ast.toString(), root.toString());
+		assertEquals(ast.toString(), root.toAST().toString());
+
+		/* no source slices; texts are read from the source */
+		Node node = p.parse(SourceContext.newStringSourceContext(input), new CompactTree().newBaseNode());
+		new BinaryASTWriter(false).transform(f.getPath(), node);
+		root = new BinaryAST(f.getPath(), SourceContext.newStringSourceContext(input)).getRoot();
+		assertEquals(ast.toString(), root.toString());
+	}
+
+}
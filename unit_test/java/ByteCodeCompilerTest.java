@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+
+import org.junit.Test;
+
+
+public class ByteCodeCompilerTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var }";
+
+	private static Production production(int option) {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		return g.getProduction("File", option);
+	}
+
+	private static String parse(Production p, String input) {
+		return String.valueOf(p.parse(SourceContext.newStringSourceContext(input), new AST()));
+	}
+
+	private static String items(int n) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < n; i++) {
+			sb.append("(" + i + "),x,");
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void test() {
+		Production p = production(Production.DefaultOption);
+		Production jit = production(Production.DefaultOption | Production.ByteCode);
+		/* the interpreter gives the same results, so the bytecode must be in use */
+		assertTrue(jit.isByteCodeCompiled());
+		assertTrue(!p.isByteCodeCompiled());
+		String[] inputs = { "1,(2),((33))", "x,(x),1", "", "((1)", items(1000) };
+		for(String input : inputs) {
+			assertEquals(parse(p, input), parse(jit, input));
+		}
+		/* a failed parse leaves the position where the interpreter stops */
+		SourceContext a = SourceContext.newStringSourceContext("1,(2,x");
+		SourceContext b = SourceContext.newStringSourceContext("1,(2,x");
+		p.parse(a, new AST());
+		jit.parse(b, new AST());
+		assertEquals(a.getPosition(), b.getPosition());
+		jit.disable(Production.ASTConstruction);
+		assertTrue(jit.isByteCodeCompiled());  // recompiled
+		assertTrue(jit.match("1,2,(x)"));
+		assertTrue(!jit.match("1,2,(x"));
+	}
+
+	/* deep recursion returns to the dispatcher instead of overflowing the JVM stack */
+	@Test
+	public void testDeepNesting() {
+		Production p = production(Production.DefaultOption);
+		Production jit = production(Production.DefaultOption | Production.ByteCode);
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 50000; i++) {
+			sb.append('(');
+		}
+		sb.append('1');
+		for(int i = 0; i < 50000; i++) {
+			sb.append(')');
+		}
+		String input = sb.toString();
+		assertEquals(parse(p, input), parse(jit, input));
+		assertEquals("(#List(#Int'1'))", parse(jit, input).replaceAll("\\s", ""));
+	}
+
+}
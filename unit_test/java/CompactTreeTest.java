@@ -0,0 +1,39 @@
+import static org.junit.Assert.assertEquals;
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.ast.CompactNode;
+import nez.ast.CompactTree;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+
+import org.junit.Test;
+
+
+public class CompactTreeTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var } / { '[' @[1]Expr ']' #Pair }\n" +
+			"Labels = { @[2]{ 'x' #X } @[0]{ 'y' #Y } @[1]{ 'z' #Z } #L }";
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		String[] inputs = { "1,(2),((33))", "x,(x),1", "", "[1],[(x)]" };
+		for(String input : inputs) {
+			AST a = p.parseAST(input);
+			CompactNode b = p.parse(SourceContext.newStringSourceContext(input), new CompactTree().newBaseNode());
+			assertEquals(String.valueOf(a), String.valueOf(b));
+			assertEquals(a.size(), b.size());
+		}
+		/* children linked out of the index order */
+		Production labels = g.getProduction("Labels", Production.DefaultOption);
+		AST a = labels.parseAST("xyz");
+		CompactNode b = labels.parse(SourceContext.newStringSourceContext("xyz"), new CompactTree().newBaseNode());
+		assertEquals(String.valueOf(a), String.valueOf(b));
+		assertEquals(3, b.size());
+	}
+
+}
@@ -0,0 +1,46 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+
+import org.junit.Test;
+
+
+public class ConcurrentParsingTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var }";
+
+	@Test
+	public void test() throws InterruptedException {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		final Production p = g.getProduction("File", Production.DefaultOption);
+		final String input = "1,(2),((33)),x,((x))";
+		final String expected = String.valueOf(p.parseAST(input));
+		final AtomicInteger failed = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int n = 0; n < 1000; n++) {
+						if(!expected.equals(String.valueOf(p.parseAST(input)))) {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		assertEquals(0, failed.get());
+	}
+
+}
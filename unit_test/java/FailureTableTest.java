@@ -0,0 +1,75 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.main.Metrics;
+import nez.runtime.MemoTable;
+
+import org.junit.Test;
+
+
+public class FailureTableTest {
+	final static String pegRule =
+			"File = { (@Expr ';')* #List }\n" +
+			"Expr = { @Term '+' @Expr #Add } / { @Term '-' @Expr #Sub } / Term\n" +
+			"Term = { '(' @Expr ')' #Group } / { [0-9]+ #Int }";
+
+	private static Production production(String rule, String start) {
+		return new NezParser().load(SourceContext.newStringSourceContext(rule), new GrammarChecker(2)).getProduction(start, Production.PackratParsing);
+	}
+
+	private static String parse(Production p, String input) {
+		return String.valueOf(p.parse(SourceContext.newStringSourceContext(input), new AST()));
+	}
+
+	@Test
+	public void test() {
+		String input = "1+(2-(3+4));((5));6-7+8;(((9+1)-2)+3);";
+		Production p = production(pegRule, "File");
+		String expected = parse(p, input);
+		p.config(MemoTable.newFailureTable(0, 0, 0, false), 32);
+		assertEquals(expected, parse(p, input));
+		assertEquals(expected, parse(p, input));  // reset
+		p.config(MemoTable.newFailureTable(0, 0, 0, true), 4);
+		assertEquals(expected, parse(p, input));
+	}
+
+	/* P fails at 0 and is tried again after Z has tried P at 2 */
+	final static String failureRule =
+			"file = (S ';')*\n" +
+			"S = P 'x' / Z / P 'y' / 'bbbb'\n" +
+			"P = 'b' P / Q\n" +
+			"Q = 'q'\n" +
+			"Z = 'bb' P 'z'";
+
+	private static Metrics parse(MemoTable table, int windowSize) {
+		Production p = production(failureRule, "file");
+		p.config(table, windowSize);
+		Metrics m = new Metrics();
+		p.setMetrics(m);
+		assertTrue(p.match("bbbb;bbbbqy;bbqx;"));
+		return m;
+	}
+
+	@Test
+	public void testEviction() {
+		Metrics packrat = parse(MemoTable.newElasticTable(0, 0, 0), 32);
+		Metrics full = parse(MemoTable.newFailureTable(0, 0, 0, false), 32);
+		Metrics window = parse(MemoTable.newFailureTable(0, 0, 0, true), 32);
+		Metrics slot = parse(MemoTable.newFailureTable(0, 0, 0, true), 1);
+		/* successes are not stored */
+		assertTrue(full.memoStored.get() < packrat.memoStored.get());
+		assertTrue(full.memoUsed.get() > 0);
+		/* a window longer than the backtracks keeps every failure */
+		assertEquals(full.memoStored.get(), window.memoStored.get());
+		assertEquals(full.memoUsed.get(), window.memoUsed.get());
+		/* one position: the failure at 0 is evicted by that at 2 */
+		assertTrue(slot.memoStored.get() > full.memoStored.get());
+		assertTrue(slot.memoUsed.get() < full.memoUsed.get());
+	}
+
+}
@@ -2,6 +2,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -28,4 +29,22 @@ public class FileSourceContextTest {
 		}
 	}
 
+	@Test
+	public void testMappedFile() throws IOException, URISyntaxException {
+		Path path = Paths.get(this.getClass().getResource("lines.txt").toURI());
+		SourceContext sc = SourceContext.loadSource(path.toString());  // a large file is mapped
+		byte[] text = Files.readAllBytes(path);
+		assertTrue(sc.length() == text.length);
+		int linenum = 1;
+		for(int pos = 0; pos < text.length; pos++) {
+			assertTrue(sc.byteAt(pos) == (text[pos] & 0xff));
+			assertTrue(sc.linenum(pos) == linenum);
+			if(text[pos] == '\n') {
+				linenum++;
+			}
+		}
+		assertTrue(sc.match(text.length - 3, new byte[] { text[text.length - 3], text[text.length - 2], text[text.length - 1] }));
+		assertTrue(sc.byteAt(text.length) == sc.EOF());
+	}
+
 }
@@ -0,0 +1,81 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import nez.Grammar;
+import nez.IncrementalParser;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+
+import org.junit.Test;
+
+
+public class IncrementalParserTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var }";
+
+	private static Production production() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		return g.getProduction("File", Production.DefaultOption);
+	}
+
+	private static String parse(Production p, String input) {
+		return String.valueOf(p.parse(SourceContext.newStringSourceContext(input), new AST()));
+	}
+
+	private static String items(int n) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < n; i++) {
+			sb.append("(" + i + "),x,");
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void test() {
+		Production p = production();
+		StringBuilder sb = new StringBuilder(items(2000));
+		IncrementalParser ip = p.newIncrementalParser("(test)", sb.toString());
+		assertEquals(parse(p, sb.toString()), String.valueOf(ip.parseAST()));
+		String[] pieces = { "1", "x", ",", "(", ")", "42,", "" };
+		Random r = new Random(1);
+		for(int n = 0; n < 50; n++) {
+			int offset = r.nextInt(sb.length() + 1);
+			int removed = Math.min(r.nextInt(4), sb.length() - offset);
+			String inserted = pieces[r.nextInt(pieces.length)];
+			sb.replace(offset, offset + removed, inserted);
+			ip.edit(offset, removed, inserted);
+			assertEquals(parse(p, sb.toString()), String.valueOf(ip.parseAST()));
+		}
+	}
+
+	/* the subtrees away from an edit are reused; those after it are moved */
+	@Test
+	public void testReuse() {
+		Production p = production();
+		String text = items(100);
+		IncrementalParser ip = p.newIncrementalParser("(test)", text);
+		AST before = ip.parseAST();
+		int offset = text.indexOf(",", text.length() / 2) + 1;  // between items
+		int edited = 0;  // the item just before the edit
+		while(before.get(edited + 1).getSourcePosition() < offset) {
+			edited++;
+		}
+		ip.edit(offset, 0, "77,");
+		AST after = ip.parseAST();
+		assertEquals(parse(p, text.substring(0, offset) + "77," + text.substring(offset)), String.valueOf(after));
+		assertEquals(before.size() + 1, after.size());
+		assertSame(before.get(0), after.get(0));
+		assertNotSame(before.get(edited), after.get(edited));  // it may have looked ahead into the edit
+		AST last = after.get(after.size() - 1);
+		assertSame(before.get(before.size() - 1), last);
+		assertEquals(text.length() + 3 - 2, last.getSourcePosition());
+	}
+
+}
@@ -0,0 +1,48 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.ast.CompactTree;
+import nez.ast.JSONWriter;
+import nez.ast.Node;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+
+import org.junit.Test;
+
+
+public class JSONWriterTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / { '\"' (!'\"' .)* '\"' #Str }";
+
+	@Test
+	public void test() throws IOException {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		String input = "12,\"a\\b\tc\"";
+		String expected = "{\"tag\":\"List\",\"pos\":0,\"children\":["
+				+ "{\"tag\":\"Int\",\"pos\":0,\"text\":\"12\"},"
+				+ "{\"tag\":\"Str\",\"pos\":3,\"text\":\"\\\"a\\\\b\\tc\\\"\"}]}\n";
+		File f = File.createTempFile("nez", ".json");
+		f.deleteOnExit();
+		JSONWriter w = new JSONWriter(true);
+		w.transform(f.getPath(), p.parse(SourceContext.newStringSourceContext(input), new AST()));
+		w.close();
+		assertEquals(expected, new String(Files.readAllBytes(f.toPath()), "UTF-8"));
+
+		w = new JSONWriter(true, true);
+		Node node = p.parse(SourceContext.newStringSourceContext(input), new CompactTree().newBaseNode());
+		w.transform(f.getPath(), node);
+		w.transform(f.getPath(), node);  // appended
+		w.close();
+		assertEquals(expected + expected, new String(Files.readAllBytes(f.toPath()), "UTF-8"));
+	}
+
+}
@@ -0,0 +1,61 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.runtime.MemoPolicy;
+import nez.runtime.MemoState;
+
+import org.junit.Test;
+
+
+public class MemoPolicyTest {
+	final static String pegRule =
+			"File = { (@Expr ';')* #List }\n" +
+			"Expr = { NUM '+' NUM #Add } / { NUM '-' NUM #Sub } / { NUM #Int }\n" +
+			"NUM = [0-9]+";
+
+	/* disables every point, and retries it after 2 calls */
+	public static class Flipping extends MemoPolicy {
+		int updated = 0;
+		public Flipping() {
+			super(1);
+		}
+		@Override
+		public String getName() {
+			return "flipping";
+		}
+		@Override
+		public boolean update(MemoState s) {
+			this.updated++;
+			s.backoff = 2;
+			return false;
+		}
+	}
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 200; i++) {
+			sb.append(i % 3 == 0 ? i + "+" + i : i % 3 == 1 ? i + "-" + i : "" + i).append(";");
+		}
+		String input = sb.toString();
+		Production p = g.getProduction("File", Production.PackratParsing);
+		String expected = p.parse(SourceContext.newStringSourceContext(input), new AST()).toString();
+		p = g.getProduction("File", Production.PackratParsing | Production.Tracing);
+		for(String name : new String[] { "static", "adaptive", Flipping.class.getName() }) {
+			MemoPolicy policy = MemoPolicy.newPolicy(name);
+			p.setMemoPolicy(policy);
+			assertEquals(expected, p.parse(SourceContext.newStringSourceContext(input), new AST()).toString());
+			if(policy instanceof Flipping) {
+				assertFalse(((Flipping)policy).updated == 0);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.main.Verbose;
+import nez.runtime.MemoProfile;
+
+import org.junit.Test;
+
+
+public class MemoProfileTest {
+	final static String pegRule =
+			"File = { (@Expr ';')* #List }\n" +
+			"Expr = { NUM '+' NUM #Add } / { NUM '-' NUM #Sub } / { NUM #Int }\n" +
+			"NUM = [0-9]+";
+
+	@Test
+	public void test() throws IOException {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		String input = "1+2;3;4-5;6;";
+		Production p = g.getProduction("File", Production.PackratParsing);
+		String expected = p.parse(SourceContext.newStringSourceContext(input), new AST()).toString();
+
+		boolean verbose = Verbose.PackratParsing;
+		File f = File.createTempFile("nez", ".prof");
+		f.deleteOnExit();
+		try {
+			Verbose.PackratParsing = true;
+			p = g.getProduction("File", Production.PackratParsing);
+			p.parse(SourceContext.newStringSourceContext(input), new AST());
+			p.saveMemoProfile(f.getPath());
+		}
+		finally {
+			Verbose.PackratParsing = verbose;
+		}
+		MemoProfile profile = MemoProfile.load(f.getPath());
+		assertTrue(profile.size() > 0);
+		assertTrue(profile.isProfitable("undefined"));
+
+		p = g.getProduction("File", Production.PackratParsing);
+		p.setMemoProfile(profile);
+		assertEquals(expected, p.parse(SourceContext.newStringSourceContext(input), new AST()).toString());
+	}
+
+}
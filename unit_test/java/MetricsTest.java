@@ -0,0 +1,91 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.main.Metrics;
+
+import org.junit.Test;
+
+
+public class MetricsTest {
+	final static String pegRule =
+			"File = { (@Expr ';')* #List }\n" +
+			"Expr = { @Term '+' @Expr #Add } / Term\n" +
+			"Term = { '(' @Expr ')' #Group } / { [0-9]+ #Int }";
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		String input = "1+(2+3);(4);5;";
+		Production p = g.getProduction("File", Production.DefaultOption);
+		String expected = p.parse(SourceContext.newStringSourceContext(input), new AST()).toString();
+		Metrics m = new Metrics();
+		p.setMetrics(m);
+		for(int i = 0; i < 10; i++) {
+			assertEquals(expected, p.parse(SourceContext.newStringSourceContext(input), new AST()).toString());
+		}
+		Production e = g.getProduction("Expr", Production.DefaultOption);
+		e.setMetrics(m);  // shared
+		assertEquals(null, e.parse(SourceContext.newStringSourceContext("+1"), new AST()));
+		assertEquals(11, m.parses.get());
+		assertEquals(1, m.failures.get());
+		assertEquals(11, m.latency.getCount());
+		assertTrue(m.astNodes.getSum() >= 10 * 8);
+		assertTrue(m.backtracks.get() > 0);
+		assertTrue(m.instructions.get() > 0);
+
+		String prom = m.formatPrometheus();
+		assertTrue(prom.contains("# TYPE nez_parse_latency_seconds histogram\n"));
+		assertTrue(prom.contains("nez_parse_latency_seconds_bucket{le=\"+Inf\"} 11\n"));
+		assertTrue(prom.contains("nez_parses_total 11\n"));
+		assertTrue(m.formatJSON().contains("\"nez_parse_failures_total\": {\"type\": \"counter\""));
+	}
+
+	@Test
+	public void testThreads() throws InterruptedException {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		final Production p = g.getProduction("File", Production.DefaultOption);
+		Metrics m = new Metrics();
+		p.setMetrics(m);
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < 200; j++) {
+						p.parse(SourceContext.newStringSourceContext("1+(2+3);(4+5+6);7;"), new AST());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		assertEquals(800, m.parses.get());
+		assertEquals(800, m.latency.getCount());
+		assertTrue(m.memoUsed.get() > 0);
+		assertEquals((double)m.memoUsed.get() / m.memoStored.get(), m.memoHitRatio.get(), 0.0);
+	}
+
+	@Test
+	public void testPercentile() {
+		Metrics m = new Metrics();
+		Metrics.Histogram h = m.histogram("h", "test", 1, 2, 10);
+		for(int i = 1; i <= 100; i++) {
+			h.observe(i);
+		}
+		assertEquals(100, h.getCount());
+		assertEquals(1.0, h.percentile(0.0), 0.001);
+		assertEquals(100.0, h.percentile(1.0), 0.001);
+		double p50 = h.percentile(0.5);
+		assertTrue(p50 >= 32 && p50 <= 64);
+		assertTrue(h == m.histogram("h", "test", 1, 2, 10));
+	}
+
+}
@@ -0,0 +1,94 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.ast.Node;
+import nez.ast.NodeListener;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.main.Command;
+
+import org.junit.Test;
+
+
+public class NodeListenerTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var }";
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		String input = "1,(2),x,((3)),(4";
+		AST full = p.parse(SourceContext.newStringSourceContext(input), new AST());
+		final StringBuilder sb = new StringBuilder();
+		AST rest = p.parse(SourceContext.newStringSourceContext(input), new AST(), new NodeListener() {
+			@Override
+			public void commit(Node child) {
+				sb.append(child);
+			}
+		});
+		assertTrue(sb.length() > 0);
+		for(AST c : rest) {
+			sb.append(c);
+		}
+		StringBuilder expected = new StringBuilder();
+		for(AST c : full) {
+			expected.append(c);
+		}
+		assertEquals(expected.toString(), sb.toString());
+
+		/* only the current child is kept in the stream buffer */
+		StringBuilder in = new StringBuilder();
+		for(int i = 0; i < 50000; i++) {
+			in.append("(" + i + "),x,");
+		}
+		final int[] count = { 0 };
+		SourceContext sc = SourceContext.newStreamSourceContext("(stream)", new ByteArrayInputStream(in.toString().getBytes()));
+		p.parse(sc, new AST(), new NodeListener() {
+			@Override
+			public void commit(Node child) {
+				count[0]++;
+			}
+		});
+		assertTrue(!sc.hasUnconsumed());
+		assertEquals(100000, count[0]);
+	}
+
+	/* the children left in a compact top-level node are written after the streamed ones */
+	@Test
+	public void testCompact() throws IOException {
+		File file = File.createTempFile("stream", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "1,2,3,.".getBytes());
+		String peg = "File = { (@Item)* @End #L }\nItem = { [0-9]+ #I } ','\nEnd = { '.' #E }";
+		String expected = run("parse", "-e", peg, "-i", file.getPath(), "--ast:stream");
+		assertTrue(expected.contains("#E"));
+		assertEquals(expected, run("parse", "-e", peg, "-i", file.getPath(), "--ast:stream", "--ast:compact"));
+	}
+
+	private static String run(String... args) {
+		PrintStream out = System.out;
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(buf));
+		try {
+			Command.main(args);
+		}
+		finally {
+			System.setOut(out);
+		}
+		return buf.toString();
+	}
+
+}
@@ -0,0 +1,55 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.runtime.MemoTable;
+
+import org.junit.Test;
+
+
+public class OffHeapTableTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var }";
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 20000; i++) {
+			sb.append("((" + i + ")),x,");
+		}
+		String[] inputs = { "1,(2),((33))", sb.toString(), "(x)" };
+		String[] expected = new String[inputs.length];
+		for(int i = 0; i < inputs.length; i++) {
+			expected[i] = String.valueOf(p.parse(SourceContext.newStringSourceContext(inputs[i]), new AST()));
+		}
+		p.config(MemoTable.newOffHeapTable(0, 0, 0, 16 * 1024 * 1024), 32);
+		for(int i = 0; i < inputs.length; i++) {
+			assertEquals(expected[i], String.valueOf(p.parse(SourceContext.newStringSourceContext(inputs[i]), new AST())));
+		}
+	}
+
+	/* a table is reused only if it has the capacity for the input */
+	@Test
+	public void testReset() {
+		MemoTable factory = MemoTable.newOffHeapTable(0, 0, 0, 64 * 1024 * 1024);
+		MemoTable small = factory.newMemoTable(null, 100, 32, 4);
+		assertSame(small, factory.newMemoTable(small, 200, 32, 4));
+		MemoTable large = factory.newMemoTable(small, 1000000, 32, 4);
+		assertNotSame(small, large);
+		assertSame(large, factory.newMemoTable(large, 1000000, 32, 4));
+		assertNotSame(large, factory.newMemoTable(large, 100, 32, 4));  // too large to clear
+		/* an unknown length (a stream) and a huge n are capped */
+		MemoTable stream = factory.newMemoTable(null, Long.MAX_VALUE, 32, Integer.MAX_VALUE);
+		assertSame(stream, factory.newMemoTable(stream, Long.MAX_VALUE, 32, Integer.MAX_VALUE));
+	}
+
+}
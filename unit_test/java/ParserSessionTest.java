@@ -0,0 +1,58 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import nez.Grammar;
+import nez.ParserSession;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.runtime.MemoTable;
+
+import org.junit.Test;
+
+
+public class ParserSessionTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var }";
+
+	private static String parse(Production p, String input) {
+		return String.valueOf(p.parse(SourceContext.newStringSourceContext(input), new AST()));
+	}
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		ParserSession session = p.newSession();
+		/* a failed input is followed by others; nothing is left over from it */
+		String[] inputs = { "1,(2),((33))", "((1)", "x,(x),1", "", "12345,(6789)" };
+		for(int n = 0; n < 3; n++) {
+			for(String input : inputs) {
+				assertEquals(parse(p, input), String.valueOf(session.parseAST(input)));
+			}
+		}
+		/* the context and its memo table are reused */
+		SourceContext sc = session.reset("1");
+		session.parseAST("1,(2)");
+		MemoTable table = sc.getMemoTable();
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 100; i++) {
+			sb.append("(" + i + "),x,");
+		}
+		session.parseAST(sb.toString());
+		assertSame(sc, session.reset("2"));
+		assertSame(table, sc.getMemoTable());
+		assertEquals("(string)", sc.getResourceName());
+		sc = session.reset("input", 10, "(x");
+		assertEquals("input", sc.getResourceName());
+		assertEquals(10, sc.linenum(0));
+		p.disable(Production.ASTConstruction);
+		assertTrue(session.match("1,(2)"));
+		assertTrue(!session.match("1,(2"));
+		assertTrue(session.match("1,(2),x"));
+	}
+
+}
@@ -0,0 +1,129 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+import nez.Grammar;
+import nez.Production;
+import nez.RecordParser;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.ast.CompactNode;
+import nez.ast.CompactTree;
+import nez.ast.Tag;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+
+public class RecordParserTest {
+	final static String pegRule =
+			"File = { (@Line)* #List }\n" +
+			"Line = { (@Expr / ',')* '\\n' #Line }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var }";
+
+	private static Grammar load(String rule) {
+		return new NezParser().load(SourceContext.newStringSourceContext(rule), new GrammarChecker(2));
+	}
+
+	private static String parse(Production p, String input) {
+		return String.valueOf(p.parse(SourceContext.newStringSourceContext(input), new AST()));
+	}
+
+	private static String lines(int n) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < n; i++) {
+			sb.append(i % 3 == 0 ? "(" + i + "),x" : String.valueOf(i));
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	private static File write(String text) throws IOException {
+		File file = File.createTempFile("records", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), StringUtils.toUtf8(text));
+		return file;
+	}
+
+	private static RecordParser newRecordParser(Grammar g, String boundary, int option) {
+		RecordParser rp = new RecordParser(g.getProduction("Line", option), StringUtils.toUtf8(boundary), new ForkJoinPool(4));
+		rp.setMinChunkSize(1024);  // many chunks
+		return rp;
+	}
+
+	@Test
+	public void test() throws IOException {
+		Grammar g = load(pegRule);
+		String text = lines(5000);
+		File file = write(text);
+		String expected = parse(g.getProduction("File", Production.DefaultOption), text);
+		/* ',' is also found inside a line; misaligned chunks are reparsed */
+		String[] boundaries = { "\n", ",", "(" };
+		for(String boundary : boundaries) {
+			RecordParser rp = newRecordParser(g, boundary, Production.DefaultOption);
+			AST a = rp.parse(SourceContext.loadSource(file.getPath()), new AST(), Tag.tag("List"));
+			assertEquals(expected, String.valueOf(a));
+			assertTrue(!rp.getStoppedContext().hasUnconsumed());
+			rp = newRecordParser(g, boundary, Production.DefaultOption & ~Production.ASTConstruction);
+			assertTrue(rp.match(SourceContext.loadSource(file.getPath())));
+		}
+		/* each chunk is built in its own CompactTree */
+		RecordParser rp = newRecordParser(g, "\n", Production.DefaultOption);
+		CompactNode c = rp.parse(SourceContext.loadSource(file.getPath()), new CompactTree().newBaseNode(), Tag.tag("List"));
+		assertEquals(expected, String.valueOf(c));
+		assertEquals(5000, c.size());
+	}
+
+	/* each record starts with an empty symbol table; peek memoizes same in the next record */
+	final static String symbolRule =
+			"Line = { <def T [a-z]+> ':' (@Word / ',')* '\\n' #Line } peek\n" +
+			"peek = &([a-z]+ ':' same) / !([a-z]+ ':' same)\n" +
+			"Word = { same #Same } / { [a-z]+ #Other }\n" +
+			"same = <is T>";
+
+	@Test
+	public void testSymbolTable() throws IOException {
+		Grammar g = load(symbolRule);
+		Production line = g.getProduction("Line", Production.DefaultOption);
+		String[] names = { "ab", "cd", "ef" };
+		String[] lines = new String[3000];
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < lines.length; i++) {
+			String name = names[i % 3];
+			lines[i] = name + ":" + names[(i + 2) % 3] + "," + name + "," + names[i % 2] + "\n";
+			sb.append(lines[i]);
+		}
+		File file = write(sb.toString());
+		RecordParser rp = new RecordParser(line, StringUtils.toUtf8("\n"), new ForkJoinPool(4));
+		rp.setMinChunkSize(1024);
+		AST a = rp.parse(SourceContext.loadSource(file.getPath()), new AST(), Tag.tag("List"));
+		assertEquals(lines.length, a.size());
+		for(int i = 0; i < lines.length; i++) {
+			String expected = parse(line, lines[i]).replaceAll("\\s", "");
+			assertEquals(expected, String.valueOf(a.get(i)).replaceAll("\\s", ""));
+		}
+	}
+
+	/* a syntax error in a later chunk stops the records there */
+	@Test
+	public void testError() throws IOException {
+		Grammar g = load(pegRule);
+		String head = lines(3000);
+		File file = write(head + "(1\n" + lines(3000));
+		RecordParser rp = newRecordParser(g, "\n", Production.DefaultOption);
+		AST a = rp.parse(SourceContext.loadSource(file.getPath()), new AST(), Tag.tag("List"));
+		assertEquals(3000, a.size());
+		assertEquals(head.length(), rp.getStoppedContext().getPosition());
+		assertTrue(rp.getStoppedContext().hasUnconsumed());
+		rp = newRecordParser(g, "\n", Production.DefaultOption & ~Production.ASTConstruction);
+		assertTrue(!rp.match(SourceContext.loadSource(file.getPath())));
+		assertEquals(head.length(), rp.getStoppedContext().getPosition());
+	}
+
+}
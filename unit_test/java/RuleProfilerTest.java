@@ -0,0 +1,57 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.runtime.RuleProfiler;
+
+import org.junit.Test;
+
+
+public class RuleProfilerTest {
+	final static String pegRule =
+			"File = { (@Expr ';')* #List }\n" +
+			"Expr = { @Term '+' @Expr #Add } / Term\n" +
+			"Term = { '(' @Expr ')' #Group } / { [0-9]+ #Int }";
+
+	@Test
+	public void test() throws IOException {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		String input = "1+(2+3);(4);5;";
+		Production p = g.getProduction("File", Production.DefaultOption);
+		String expected = p.parse(SourceContext.newStringSourceContext(input), new AST()).toString();
+		RuleProfiler prof = new RuleProfiler();
+		p.setRuleProfiler(prof);
+		assertEquals(expected, p.parse(SourceContext.newStringSourceContext(input), new AST()).toString());
+
+		File f = File.createTempFile("nez", ".csv");
+		f.deleteOnExit();
+		prof.writeCSV(f.getPath());
+		List<String> lines = Files.readAllLines(f.toPath());
+		assertTrue(lines.get(0).startsWith("rule,calls,failures,"));
+		boolean found = false;
+		for(String line : lines) {
+			String[] c = line.split(",");
+			if(c[0].endsWith("Term")) {
+				found = true;
+				assertTrue(Long.parseLong(c[1]) > 0);
+				assertTrue(Long.parseLong(c[5]) > 0);  // consumed
+			}
+		}
+		assertTrue(found);
+		prof.writeFlameGraph(f.getPath());
+		for(String line : Files.readAllLines(f.toPath())) {
+			assertTrue(line.matches("[A-Za-z;]+ [0-9]+"));
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.runtime.SamplingProfiler;
+
+import org.junit.Test;
+
+
+public class SamplingProfilerTest {
+	final static String pegRule =
+			"File = { (@Expr ';')* #List }\n" +
+			"Expr = { @Term '+' @Expr #Add } / Term\n" +
+			"Term = { '(' @Expr ')' #Group } / { [0-9]+ #Int }";
+
+	@Test
+	public void test() throws IOException {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 2000; i++) {
+			sb.append("1+(2+(3+4));");
+		}
+		String input = sb.toString();
+		Production p = g.getProduction("File", Production.DefaultOption);
+		String expected = p.parse(SourceContext.newStringSourceContext(input), new AST()).toString();
+		SamplingProfiler prof = new SamplingProfiler(100);
+		p.setSamplingProfiler(prof);
+		for(int i = 0; i < 1000 && prof.getSampleCount() == 0; i++) {
+			assertEquals(expected, p.parse(SourceContext.newStringSourceContext(input), new AST()).toString());
+		}
+		prof.stop();
+		assertTrue(prof.getSampleCount() > 0);
+
+		File f = File.createTempFile("nez", ".txt");
+		f.deleteOnExit();
+		prof.report(f.getPath());
+		String report = new String(Files.readAllBytes(f.toPath()), "UTF-8");
+		assertTrue(report.contains("# rule\tsamples\t%"));
+		assertTrue(report.contains("Term") || report.contains("Expr") || report.contains("File"));
+	}
+
+}
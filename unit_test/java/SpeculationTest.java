@@ -0,0 +1,39 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.runtime.Speculation;
+
+import org.junit.Test;
+
+
+public class SpeculationTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ 'a' #A } / { [0-9]+ 'b' #B } / '(' Expr ')' / { 'x' #Var }";
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		Production s = g.getProduction("File", Production.DefaultOption);
+		s.setSpeculation(new Speculation(new ForkJoinPool(2), "Expr"));
+		String[] inputs = { "1a,(2b),((33b))", "x,(x),1a", "", "((1b)", "1c" };
+		for(String input : inputs) {
+			AST a = p.parseAST(input);
+			AST b = s.parseAST(input);
+			assertEquals(String.valueOf(a), String.valueOf(b));
+		}
+		s.disable(Production.ASTConstruction);
+		assertTrue(s.match("1a,2b,(x)"));
+		assertTrue(!s.match("1a,2b,(x"));
+	}
+
+}
@@ -0,0 +1,94 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+
+import org.junit.Test;
+
+
+public class StreamSourceContextTest {
+	final static String pegRule =
+			"File = { (@Expr / ',')* #List }\n" +
+			"Expr = { [0-9]+ #Int } / '(' Expr ')' / { 'x' #Var }";
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 50000; i++) {
+			sb.append("(" + i + "),x,");
+		}
+		String input = sb.toString();
+		Production p = g.getProduction("File", Production.DefaultOption);
+		p.disable(Production.ASTConstruction);
+		SourceContext sc = SourceContext.newStreamSourceContext("(stream)", new ByteArrayInputStream(input.getBytes()));
+		assertTrue(sc.isStreaming());
+		assertTrue(p.match(sc));
+		assertTrue(!sc.hasUnconsumed());
+		assertEquals(input.length(), sc.getPosition());
+		/* the consumed text is discarded; it cannot be read again */
+		assertTrue(sc.getBufferedStartPosition() > input.length() / 2);
+		try {
+			sc.byteAt(0);
+			fail("discarded position");
+		}
+		catch(IndexOutOfBoundsException e) {
+		}
+		try {
+			sc.substring(0, 10);
+			fail("discarded position");
+		}
+		catch(IndexOutOfBoundsException e) {
+		}
+
+		/* symbol tables do not pin the input */
+		Grammar block = new NezParser().load(SourceContext.newStringSourceContext("blocks = (<block Expr> / ',')*\n" + pegRule), new GrammarChecker(2));
+		p = block.getProduction("blocks", Production.DefaultOption);
+		p.disable(Production.ASTConstruction);
+		sc = SourceContext.newStreamSourceContext("(stream)", new ByteArrayInputStream(input.getBytes()));
+		assertTrue(p.match(sc));
+		assertTrue(sc.getBufferedStartPosition() > input.length() / 2);
+		
+		Production expr = g.getProduction("Expr", Production.DefaultOption);
+		sc = SourceContext.newStreamSourceContext("(stream)", new ByteArrayInputStream("(1)x(22)".getBytes()));
+		assertEquals("(#Int '1')", String.valueOf(expr.parse(sc, new AST())).trim());
+		assertEquals("(#Var 'x')", String.valueOf(expr.parse(sc, new AST())).trim());
+		assertEquals("(#Int '22')", String.valueOf(expr.parse(sc, new AST())).trim());
+		assertTrue(!sc.hasUnconsumed());
+	}
+
+	/* a read error is reported, rather than taken as the end of the input */
+	@Test
+	public void testReadError() {
+		InputStream in = new InputStream() {
+			int count = 0;
+			@Override
+			public int read() throws IOException {
+				if(this.count == 4) {
+					throw new IOException("broken pipe");
+				}
+				return "1,2,".charAt(this.count++);
+			}
+		};
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		try {
+			p.parse(SourceContext.newStreamSourceContext("(stream)", in), new AST());
+			fail("read error");
+		}
+		catch(RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import nez.Grammar;
+import nez.Production;
+import nez.SourceContext;
+import nez.ast.AST;
+import nez.ast.TextPool;
+import nez.expr.GrammarChecker;
+import nez.expr.NezParser;
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+
+public class TokenTextTest {
+	final static String pegRule =
+			"File = { (@Word / ' ')* #List }\n" +
+			"Word = { (!' ' .)+ #Word }";
+
+	@Test
+	public void test() {
+		Grammar g = new NezParser().load(SourceContext.newStringSourceContext(pegRule), new GrammarChecker(2));
+		Production p = g.getProduction("File", Production.DefaultOption);
+		SourceContext sc = SourceContext.newStringSourceContext("abc déf abc");
+		AST ast = p.parse(sc, new AST());
+		assertTrue(ast.get(0).textEquals(StringUtils.toUtf8("abc")));
+		assertTrue(!ast.get(0).textEquals(StringUtils.toUtf8("ab")));
+		assertTrue(ast.get(1).textEquals(StringUtils.toUtf8("déf")));
+		CharSequence s = ast.get(0).getTextSequence();
+		assertEquals(3, s.length());
+		assertEquals('b', s.charAt(1));
+		assertEquals("bc", s.subSequence(1, 3).toString());
+		assertEquals("déf", ast.get(1).getTextSequence().toString());
+		assertEquals(3, ast.get(1).getTextSequence().length());
+
+		TextPool pool = new TextPool();
+		String t = pool.intern(sc, ast.get(0).getSourcePosition(), ast.get(0).getLength());
+		assertEquals("abc", t);
+		assertSame(t, pool.intern(sc, ast.get(2).getSourcePosition(), ast.get(2).getLength()));
+		assertEquals(1, pool.size());
+	}
+
+}